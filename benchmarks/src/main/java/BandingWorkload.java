@@ -0,0 +1,44 @@
+import benchmarks.SyntheticTweets;
+import benchmarks.Workload;
+
+import java.util.Map;
+
+/**
+ * Puts all the documents of a synthetic corpus in the buckets of one band per operation,
+ * with computeCandidatePairsForBand, going round through the bands.
+ */
+public class BandingWorkload implements Workload {
+
+    private static final int B = 20;
+    private static final int R = 5;
+
+    private LocalitySensitiveHashing lsh;
+    private int[] docSignatures;
+    private int band = 0;
+
+    @Override
+    public void setup(Map<String, Object> params) {
+        final int documents = Workload.intParam(params, "documents");
+        final int nShingles = 100000;
+        final Shingler shingler = new Shingler(5, nShingles);
+        final MinHash minHash = new MinHash(B * R, nShingles);
+
+        lsh = new LocalitySensitiveHashing(5, nShingles, "", B, R, Workload.intParam(params, "numberOfBuckets"),
+                documents, 0.8, "");
+        final String[] tweets = SyntheticTweets.generate(documents, 100, 0.3, 1234);
+        docSignatures = new int[documents * B * R];
+        for (int i = 0; i < documents; i++) {
+            minHash.getSignature(shingler.shingle(tweets[i]), docSignatures, i * B * R);
+        }
+        if (Workload.booleanParam(params, "bandKeys")) {
+            lsh.bandKeys = lsh.computeBandKeys(docSignatures);
+        }
+    }
+
+    @Override
+    public long run() {
+        final MyPrimitiveArrayList[] buckets = lsh.computeCandidatePairsForBand(docSignatures, band);
+        band = (band + 1) % B;
+        return buckets.length;
+    }
+}
@@ -0,0 +1,41 @@
+import benchmarks.SyntheticTweets;
+import benchmarks.Workload;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the MinHash signature of one pre-shingled synthetic tweet per operation.
+ */
+public class MinHashWorkload implements Workload {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    private MinHash minHash;
+    private Set<Integer>[] documents;
+    private int[] signature;
+    private int next = 0;
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setup(Map<String, Object> params) {
+        final int signatureSize = Workload.intParam(params, "signatureSize");
+        final int nShingles = Workload.intParam(params, "nShingles");
+        final Shingler shingler = new Shingler(Workload.intParam(params, "shingleLength"), nShingles);
+        final String[] tweets = SyntheticTweets.generate(CORPUS_SIZE, Workload.intParam(params, "documentLength"), 0.3, 1234);
+
+        documents = new Set[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            documents[i] = shingler.shingle(tweets[i]);
+        }
+        minHash = new MinHash(signatureSize, nShingles);
+        minHash.kernel = MinHash.kernel((String) params.get("kernel"));
+        signature = new int[signatureSize];
+    }
+
+    @Override
+    public long run() {
+        minHash.getSignature(documents[next++ & (CORPUS_SIZE - 1)], signature, 0);
+        return signature[0];
+    }
+}
@@ -0,0 +1,29 @@
+import benchmarks.Workload;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Hashes the bytes of one band (r rows of 4 bytes) per operation, the way banding does.
+ */
+public class MurmurHashWorkload implements Workload {
+
+    private static final int BANDS = 1024;
+
+    private byte[] data;
+    private int bandBytes;
+    private int next = 0;
+
+    @Override
+    public void setup(Map<String, Object> params) {
+        bandBytes = Workload.intParam(params, "r") * 4;
+        data = new byte[BANDS * bandBytes];
+        new Random(1234).nextBytes(data);
+    }
+
+    @Override
+    public long run() {
+        final int start = (next++ & (BANDS - 1)) * bandBytes;
+        return MurmurHash.myMurmurHash32(data, start, start + bandBytes - 1);
+    }
+}
@@ -0,0 +1,25 @@
+import benchmarks.Workload;
+
+import java.util.Map;
+
+/**
+ * Fills one MyPrimitiveArrayList, starting from the capacity banding uses, per operation.
+ */
+public class PrimitiveArrayListWorkload implements Workload {
+
+    private int elements;
+
+    @Override
+    public void setup(Map<String, Object> params) {
+        elements = Workload.intParam(params, "elements");
+    }
+
+    @Override
+    public long run() {
+        final MyPrimitiveArrayList list = new MyPrimitiveArrayList(4);
+        for (int i = 0; i < elements; i++) {
+            list.add(i);
+        }
+        return list.get(list.size() - 1);
+    }
+}
@@ -0,0 +1,28 @@
+import benchmarks.SyntheticTweets;
+import benchmarks.Workload;
+
+import java.util.Map;
+
+/**
+ * Shingles one synthetic tweet per operation, cycling through a fixed corpus.
+ */
+public class ShinglerWorkload implements Workload {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    private Shingler shingler;
+    private String[] documents;
+    private int next = 0;
+
+    @Override
+    public void setup(Map<String, Object> params) {
+        shingler = new Shingler(Workload.intParam(params, "shingleLength"), Workload.intParam(params, "nShingles"));
+        documents = SyntheticTweets.generate(CORPUS_SIZE, Workload.intParam(params, "documentLength"), 0.3, 1234);
+    }
+
+    @Override
+    public long run() {
+        final String document = documents[next++ & (CORPUS_SIZE - 1)];
+        return shingler.shingle(document).size();
+    }
+}
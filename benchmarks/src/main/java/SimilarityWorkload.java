@@ -0,0 +1,43 @@
+import benchmarks.SyntheticTweets;
+import benchmarks.Workload;
+
+import java.util.Map;
+
+/**
+ * Estimates the similarity of one pair of signatures per operation with jaccardSimilarityFast.
+ * Half of the pairs are near duplicates, the rest are unrelated tweets.
+ */
+public class SimilarityWorkload implements Workload {
+
+    private static final int CORPUS_SIZE = 1024;
+
+    private int[] docSignatures;
+    private int signatureSize;
+    private int next = 0;
+
+    @Override
+    public void setup(Map<String, Object> params) {
+        signatureSize = Workload.intParam(params, "signatureSize");
+        final int nShingles = 100000;
+        final Shingler shingler = new Shingler(5, nShingles);
+        final MinHash minHash = new MinHash(signatureSize, nShingles);
+
+        //every odd tweet is a near copy of the tweet before it
+        final SyntheticTweets generator = new SyntheticTweets(1234);
+        docSignatures = new int[CORPUS_SIZE * signatureSize];
+        String previous = null;
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            final String tweet = i % 4 == 1 ? generator.nearCopy(previous) : generator.tweet(100);
+            minHash.getSignature(shingler.shingle(tweet), docSignatures, i * signatureSize);
+            previous = tweet;
+        }
+    }
+
+    @Override
+    public long run() {
+        final int pair = (next++ & (CORPUS_SIZE / 2 - 1)) * 2;
+        final double similarity = LocalitySensitiveHashing.jaccardSimilarityFast(docSignatures,
+                pair * signatureSize, (pair + 1) * signatureSize, signatureSize);
+        return Double.doubleToLongBits(similarity);
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LocalitySensitiveHashing.computeCandidatePairsForBand, one band over the whole corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BandingBenchmark {
+
+    @Param({"100000"})
+    public int documents;
+
+    @Param({"10000", "1000000"})
+    public int numberOfBuckets;
+
+    @Param({"false", "true"})
+    public boolean bandKeys;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() {
+        workload = Workload.load("BandingWorkload", Map.of("documents", documents, "numberOfBuckets", numberOfBuckets, "bandKeys", bandKeys));
+    }
+
+    @Benchmark
+    public long computeCandidatePairsForBand() {
+        return workload.run();
+    }
+}
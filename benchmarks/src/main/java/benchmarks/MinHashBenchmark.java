@@ -0,0 +1,55 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MinHash.getSignature on one shingled tweet, with the scalar and the Vector API kernel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class MinHashBenchmark {
+
+    @Param({"50", "100", "200"})
+    public int signatureSize;
+
+    @Param({"40", "140", "280"})
+    public int documentLength;
+
+    @Param({"5"})
+    public int shingleLength;
+
+    @Param({"100000"})
+    public int nShingles;
+
+    @Param({"scalar", "vector"})
+    public String kernel;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() {
+        workload = Workload.load("MinHashWorkload", Map.of("signatureSize", signatureSize, "documentLength", documentLength, "shingleLength", shingleLength, "nShingles", nShingles, "kernel", kernel));
+    }
+
+    @Benchmark
+    public long getSignature() {
+        return workload.run();
+    }
+}
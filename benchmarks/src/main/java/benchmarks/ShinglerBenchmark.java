@@ -0,0 +1,49 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shingler.shingle on one tweet.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShinglerBenchmark {
+
+    @Param({"3", "5", "9"})
+    public int shingleLength;
+
+    @Param({"40", "140", "280"})
+    public int documentLength;
+
+    @Param({"1000000"})
+    public int nShingles;
+
+    private Workload workload;
+
+    @Setup
+    public void setup() {
+        workload = Workload.load("ShinglerWorkload", Map.of("shingleLength", shingleLength, "documentLength", documentLength, "nShingles", nShingles));
+    }
+
+    @Benchmark
+    public long shingle() {
+        return workload.run();
+    }
+}
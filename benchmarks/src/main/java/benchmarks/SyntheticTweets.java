@@ -0,0 +1,138 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic generator of tweet-like documents, so that benchmarks and engines are always compared on the
+ * same corpus.
+ *
+ * Words come from a fixed pseudo-random vocabulary with a Zipf distribution, like real text, with the odd
+ * @mention and URL in between. A share of the tweets are near copies of an earlier tweet: exact copies, retweets
+ * ("RT @user: " + text) and copies with one word replaced, which is what makes LSH find pairs.
+ *
+ * The same seed always gives the same corpus.
+ */
+public final class SyntheticTweets {
+
+    private static final int VOCABULARY_SIZE = 5000;
+
+    private final Random random;
+    private final String[] vocabulary;
+    private final double[] cumulativeWeights;
+
+    public SyntheticTweets(long seed) {
+        this.random = new Random(seed);
+        this.vocabulary = new String[VOCABULARY_SIZE];
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            final int length = 2 + random.nextInt(9);
+            final char[] word = new char[length];
+            for (int j = 0; j < length; j++) {
+                word[j] = (char) ('a' + random.nextInt(26));
+            }
+            vocabulary[i] = new String(word);
+        }
+        //Zipf with exponent 1, the word of rank k has weight 1/k
+        this.cumulativeWeights = new double[VOCABULARY_SIZE];
+        double total = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            total += 1.0 / (i + 1);
+            cumulativeWeights[i] = total;
+        }
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            cumulativeWeights[i] /= total;
+        }
+    }
+
+    /**
+     * Generates a corpus with the default generator.
+     * @param count number of tweets
+     * @param documentLength about how many characters every tweet has
+     * @param duplicateRate share of the tweets that are near copies of an earlier one
+     * @param seed the seed of the generator
+     */
+    public static String[] generate(int count, int documentLength, double duplicateRate, long seed) {
+        final SyntheticTweets generator = new SyntheticTweets(seed);
+        final String[] tweets = new String[count];
+        for (int i = 0; i < count; i++) {
+            tweets[i] = i > 0 && generator.random.nextDouble() < duplicateRate
+                    ? generator.nearCopy(tweets[generator.random.nextInt(i)])
+                    : generator.tweet(documentLength);
+        }
+        return tweets;
+    }
+
+    /**
+     * A new tweet of about documentLength characters.
+     */
+    public String tweet(int documentLength) {
+        final StringBuilder sb = new StringBuilder(documentLength + 16);
+        while (sb.length() < documentLength) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            final double kind = random.nextDouble();
+            if (kind < 0.03) {
+                sb.append("@user").append(random.nextInt(100000));
+            } else if (kind < 0.05) {
+                sb.append("http://t.co/").append(Integer.toString(random.nextInt(Integer.MAX_VALUE), 36));
+            } else {
+                sb.append(word());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A near copy of text: an exact copy, a retweet or a copy with one word replaced.
+     */
+    public String nearCopy(String text) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return text;
+            case 1:
+                return "RT @user" + random.nextInt(100000) + ": " + text;
+            default:
+                final String[] words = text.split(" ");
+                words[random.nextInt(words.length)] = word();
+                return String.join(" ", words);
+        }
+    }
+
+    private String word() {
+        int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble());
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return vocabulary[Math.min(index, VOCABULARY_SIZE - 1)];
+    }
+
+    /**
+     * Writes a corpus in the format TwitterReader reads: id, user and text separated by tabs, one tweet per line.
+     *
+     * Usage: SyntheticTweets outputFile count [documentLength] [duplicateRate] [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: SyntheticTweets outputFile count [documentLength] [duplicateRate] [seed]");
+            System.exit(1);
+        }
+        final int count = Integer.parseInt(args[1]);
+        final int documentLength = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        final double duplicateRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.3;
+        final long seed = args.length > 4 ? Long.parseLong(args[4]) : 1234;
+
+        final String[] tweets = generate(count, documentLength, duplicateRate, seed);
+        try (BufferedWriter bw = Files.newBufferedWriter(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < tweets.length; i++) {
+                bw.write(i + "\tuser" + (i % 1000) + "\t" + tweets[i]);
+                bw.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.Map;
+
+/**
+ * A piece of the LSH code to measure.
+ *
+ * The LSH classes live in the default package, which code in a named package cannot reference, and JMH does not
+ * accept benchmarks in the default package. So every benchmark loads an implementation of this interface from the
+ * default package by name, once in its setup, and the measured code is then a plain interface call.
+ */
+public interface Workload {
+
+    /**
+     * Builds the input data for the given benchmark parameters. Not measured.
+     */
+    void setup(Map<String, Object> params);
+
+    /**
+     * Runs one operation of the workload.
+     * @return something that depends on the result, so that the JIT cannot drop the work
+     */
+    long run();
+
+    /**
+     * Creates and sets up a workload of the default package.
+     * @param className the simple name of the workload class
+     * @param params the benchmark parameters
+     */
+    static Workload load(String className, Map<String, Object> params) {
+        try {
+            Workload workload = (Workload) Class.forName(className).getDeclaredConstructor().newInstance();
+            workload.setup(params);
+            return workload;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load workload " + className, e);
+        }
+    }
+
+    static int intParam(Map<String, Object> params, String name) {
+        return (Integer) params.get(name);
+    }
+
+    static boolean booleanParam(Map<String, Object> params, String name) {
+        return (Boolean) params.get(name);
+    }
+}
@@ -0,0 +1,81 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the weighted MinHash estimate with the exact weighted Jaccard of a few multisets, built the way Shingler
+ * builds them with -weighted true (copy j of shingle k is k + j*nShingles).
+ */
+class WeightedMinHashTest {
+
+    private static final int N_SHINGLES = 100000;
+    private static final int SIGNATURE_SIZE = 2000;
+    //more than 4 standard deviations of the estimate at this signature size
+    private static final double TOLERANCE = 0.05;
+
+    private final MinHash minHash = new MinHash(SIGNATURE_SIZE, N_SHINGLES);
+
+    @Test
+    void copiesOfOneShingle() {
+        assertEstimate(new int[]{7}, new int[]{2}, new int[]{7}, new int[]{5});
+        assertEstimate(new int[]{7}, new int[]{1}, new int[]{7}, new int[]{4});
+        assertEstimate(new int[]{7, 9}, new int[]{3, 1}, new int[]{7, 9}, new int[]{1, 3});
+    }
+
+    @Test
+    void repetitiveDocuments() {
+        //few distinct shingles with large counts, half of them shared
+        final Random random = new Random(1234);
+        for (int t = 0; t < 5; t++) {
+            final int distinct = 5 + random.nextInt(20);
+            final int[] shingles = new int[distinct];
+            final int[] countsA = new int[distinct];
+            final int[] countsB = new int[distinct];
+            for (int i = 0; i < distinct; i++) {
+                shingles[i] = random.nextInt(N_SHINGLES);
+                countsA[i] = random.nextInt(10);
+                countsB[i] = random.nextBoolean() ? countsA[i] : random.nextInt(10);
+            }
+            assertEstimate(shingles, countsA, shingles, countsB);
+        }
+    }
+
+    private void assertEstimate(int[] shinglesA, int[] countsA, int[] shinglesB, int[] countsB) {
+        final Set<Integer> a = multiset(shinglesA, countsA);
+        final Set<Integer> b = multiset(shinglesB, countsB);
+        final Set<Integer> union = new HashSet<>(a);
+        union.addAll(b);
+        int intersection = 0;
+        for (Integer element : a) {
+            if (b.contains(element)) {
+                intersection++;
+            }
+        }
+        //the Jaccard of the multisets is the weighted Jaccard of the counts
+        final double exact = union.isEmpty() ? 1 : (double) intersection / union.size();
+
+        final int[] signatureA = minHash.getSignature(a);
+        final int[] signatureB = minHash.getSignature(b);
+        int equal = 0;
+        for (int i = 0; i < signatureA.length; i++) {
+            if (signatureA[i] == signatureB[i]) {
+                equal++;
+            }
+        }
+        assertEquals(exact, (double) equal / signatureA.length, TOLERANCE);
+    }
+
+    private static Set<Integer> multiset(int[] shingles, int[] counts) {
+        final Set<Integer> set = new HashSet<>();
+        for (int i = 0; i < shingles.length; i++) {
+            for (int j = 0; j < counts[i]; j++) {
+                set.add(shingles[i] + j * N_SHINGLES);
+            }
+        }
+        return set;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * b-bit MinHash signatures (Li and Konig). Only the lowest bits of every MinHash value are kept,
+ * packed into long words, 64/bits values per word.
+ *
+ * Two full MinHash values are equal with probability J (the Jaccard similarity). Their lowest b bits are equal
+ * with probability J + (1-J)/2^b, because two different values still agree on b random bits by chance. Counting
+ * the equal b-bit fields with XOR and popcount and correcting for that chance gives an estimate of J with
+ * 4 to 32 times less memory than the 32 bit values.
+ */
+final class BBitSignatures {
+
+    private final int bits;
+    private final int signatureSize;
+    private final int valuesPerWord;
+    private final int wordsPerDocument;
+    private final long valueMask;
+
+    //one bit at the lowest position of every field of a word
+    private final long lowBits;
+
+    //every field of the last word of a signature that holds a value
+    private final long lastWordFields;
+
+    private final long[] words;
+
+    /**
+     * @param bits bits kept from every value, 1, 2, 4 or 8
+     * @param signatureSize number of values in a signature
+     * @param numberOfDocuments number of signatures to store
+     */
+    public BBitSignatures(int bits, int signatureSize, int numberOfDocuments) {
+        if (bits != 1 && bits != 2 && bits != 4 && bits != 8) {
+            throw new IllegalArgumentException("bits must be 1, 2, 4 or 8: " + bits);
+        }
+        this.bits = bits;
+        this.signatureSize = signatureSize;
+        this.valuesPerWord = 64 / bits;
+        this.wordsPerDocument = (signatureSize + valuesPerWord - 1) / valuesPerWord;
+        this.valueMask = (1L << bits) - 1;
+
+        long low = 0;
+        for (int i = 0; i < valuesPerWord; i++) {
+            low |= 1L << (i * bits);
+        }
+        this.lowBits = low;
+
+        final int valuesInLastWord = signatureSize - (wordsPerDocument - 1) * valuesPerWord;
+        this.lastWordFields = valuesInLastWord == valuesPerWord ? low : low & ((1L << (valuesInLastWord * bits)) - 1);
+
+        this.words = new long[wordsPerDocument * numberOfDocuments];
+    }
+
+    /**
+     * Packs the lowest bits of a full signature.
+     * @param doc the id of the document
+     * @param signature array with the full signature
+     * @param start index of the first value of the signature in the array
+     */
+    public void set(int doc, int[] signature, int start) {
+        final int base = doc * wordsPerDocument;
+        for (int w = 0; w < wordsPerDocument; w++) {
+            long word = 0;
+            final int first = w * valuesPerWord;
+            final int last = Math.min(first + valuesPerWord, signatureSize);
+            for (int i = first; i < last; i++) {
+                word |= (signature[start + i] & valueMask) << ((i - first) * bits);
+            }
+            words[base + w] = word;
+        }
+    }
+
+    /**
+     * Number of signature rows whose lowest bits are equal in the two documents.
+     */
+    public int equalFields(int doc1, int doc2) {
+        final int base1 = doc1 * wordsPerDocument;
+        final int base2 = doc2 * wordsPerDocument;
+        int different = 0;
+        for (int w = 0; w < wordsPerDocument; w++) {
+            long x = words[base1 + w] ^ words[base2 + w];
+            //fold every field onto its lowest bit, the bit is 1 iff the field differs somewhere
+            if (bits >= 2) x |= x >>> 1;
+            if (bits >= 4) x |= x >>> 2;
+            if (bits >= 8) x |= x >>> 4;
+            different += Long.bitCount(x & (w == wordsPerDocument - 1 ? lastWordFields : lowBits));
+        }
+        return signatureSize - different;
+    }
+
+    /**
+     * Estimated Jaccard similarity of two documents, with the chance agreement of b bits removed.
+     */
+    public double similarity(int doc1, int doc2) {
+        final double equal = (double) equalFields(doc1, doc2) / signatureSize;
+        final double chance = 1.0 / (1 << bits);
+        final double estimate = (equal - chance) / (1 - chance);
+        return estimate < 0 ? 0 : estimate;
+    }
+
+    public int bits() {
+        return bits;
+    }
+
+    /**
+     * The packed words themselves, for saving them to and loading them from a checkpoint.
+     */
+    long[] words() {
+        return words;
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.Set;
+
+/**
+ * Keeps the capacity most similar pairs seen so far.
+ *
+ * This is a min-heap on the similarity stored in three parallel primitive arrays, so the least similar
+ * kept pair is always at the root. Once the heap is full, a new pair only gets in if it is more similar
+ * than the root, and the root is dropped. The same pair can be found in many bands, therefore the heap
+ * also keeps a map from the pair key to the position of the pair in the heap.
+ *
+ * Memory is proportional to capacity and not to the number of pairs over the threshold.
+ */
+final class BoundedPairHeap {
+
+    private final int capacity;
+    private final int[] ids1;
+    private final int[] ids2;
+    private final double[] similarities;
+    private int size = 0;
+
+    //pair key -> index of the pair in the heap arrays
+    private final LongIntHashMap positions;
+
+    public BoundedPairHeap(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.ids1 = new int[capacity];
+        this.ids2 = new int[capacity];
+        this.similarities = new double[capacity];
+        this.positions = new LongIntHashMap(capacity);
+    }
+
+    /**
+     * Offers a pair to the heap.
+     * @return true if the pair is now part of the top pairs
+     */
+    public boolean offer(int id1, int id2, double similarity) {
+        final long key = LongIntHashMap.pairKey(id1, id2);
+        if (positions.containsKey(key)) {
+            return true; //seen in an earlier band, the similarity is the same
+        }
+        if (size < capacity) {
+            set(size, id1, id2, similarity);
+            positions.put(key, size);
+            siftUp(size++);
+            return true;
+        }
+        if (similarity <= similarities[0]) {
+            return false;
+        }
+        positions.remove(LongIntHashMap.pairKey(ids1[0], ids2[0]));
+        set(0, id1, id2, similarity);
+        positions.put(key, 0);
+        siftDown(0);
+        return true;
+    }
+
+    /**
+     * The similarity a pair needs to have more than in order to get in the heap,
+     * or Double.NEGATIVE_INFINITY while the heap is not full yet.
+     */
+    public double minimumSimilarity() {
+        return size < capacity ? Double.NEGATIVE_INFINITY : similarities[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds all kept pairs to target.
+     */
+    public void drainTo(Set<SimilarPair> target) {
+        for (int i = 0; i < size; i++) {
+            target.add(new SimilarPair(ids1[i], ids2[i], similarities[i]));
+        }
+    }
+
+    private void set(int index, int id1, int id2, double similarity) {
+        ids1[index] = id1;
+        ids2[index] = id2;
+        similarities[index] = similarity;
+    }
+
+    private void swap(int a, int b) {
+        final int id1 = ids1[a];
+        final int id2 = ids2[a];
+        final double similarity = similarities[a];
+        set(a, ids1[b], ids2[b], similarities[b]);
+        set(b, id1, id2, similarity);
+        positions.put(LongIntHashMap.pairKey(ids1[a], ids2[a]), a);
+        positions.put(LongIntHashMap.pairKey(ids1[b], ids2[b]), b);
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (similarities[parent] <= similarities[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index) {
+        while (true) {
+            final int left = 2 * index + 1;
+            if (left >= size) {
+                return;
+            }
+            int smallest = left;
+            final int right = left + 1;
+            if (right < size && similarities[right] < similarities[left]) {
+                smallest = right;
+            }
+            if (similarities[index] <= similarities[smallest]) {
+                return;
+            }
+            swap(index, smallest);
+            index = smallest;
+        }
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checkpoints of a long LSH run, so that a run that dies can continue from where it was.
+ *
+ * A checkpoint is a directory of named files. The files are written by one background thread, one after the other
+ * in the order they were asked for, so the run does not wait for the disk. Every file is written under a temporary
+ * name and renamed when it is complete, therefore a file that exists is complete: its existence is the marker
+ * that the step it belongs to is done.
+ *
+ * The directory also has the parameters of the run. A checkpoint of a run with other parameters is thrown away.
+ * That file is also what makes the directory a checkpoint: a directory with other files and no parameters is not
+ * touched, the run stops instead.
+ *
+ * A file that could not be written stops the run at the next file asked for, not only once the run is over.
+ */
+final class Checkpoint {
+
+    /**
+     * Pairs in the order they were found, in three growable primitive arrays.
+     */
+    static final class Pairs {
+        int[] ids1 = new int[64];
+        int[] ids2 = new int[64];
+        double[] similarities = new double[64];
+        int size = 0;
+
+        void add(int id1, int id2, double similarity) {
+            if (size == ids1.length) {
+                final int newSize = size + (size >> 1);
+                ids1 = Arrays.copyOf(ids1, newSize);
+                ids2 = Arrays.copyOf(ids2, newSize);
+                similarities = Arrays.copyOf(similarities, newSize);
+            }
+            ids1[size] = id1;
+            ids2[size] = id2;
+            similarities[size] = similarity;
+            size++;
+        }
+    }
+
+    private static final String PARAMETERS = "parameters.txt";
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private final File directory;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "lsh-checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private Future<?> last;
+
+    /**
+     * Opens the checkpoint in directory, or starts a new one if there is none or it belongs to other parameters.
+     * @param parameters a description of everything that changes the result of the run
+     */
+    Checkpoint(String directory, String parameters) {
+        this.directory = new File(directory);
+        try {
+            final File parametersFile = new File(this.directory, PARAMETERS);
+            if (parametersFile.exists()) {
+                final String previous = new String(Files.readAllBytes(parametersFile.toPath()), StandardCharsets.UTF_8);
+                if (previous.equals(parameters)) {
+                    return;
+                }
+                System.out.println("Checkpoint in " + directory + " is from a run with other parameters, starting over");
+            } else {
+                final String[] files = this.directory.list();
+                if (files != null && files.length > 0) {
+                    throw new IllegalArgumentException(directory + " is not empty and is not a checkpoint, "
+                            + "use a new directory for -checkpointDir");
+                }
+            }
+            delete();
+            this.directory.mkdirs();
+            Files.write(parametersFile.toPath(), parameters.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    boolean has(String name) {
+        return new File(directory, name).exists();
+    }
+
+    void writeInts(String name, final int[] values) {
+        submit(name, channel -> {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(values.length);
+            for (int i = 0; i < values.length; ) {
+                final int n = Math.min(values.length - i, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, i, n);
+                buffer.position(buffer.position() + n * 4);
+                i += n;
+                flush(buffer, channel);
+            }
+            flush(buffer, channel);
+        });
+    }
+
+    void writeLongs(String name, final long[] values) {
+        submit(name, channel -> {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(values.length);
+            for (int i = 0; i < values.length; ) {
+                final int n = Math.min(values.length - i, buffer.remaining() / 8);
+                buffer.asLongBuffer().put(values, i, n);
+                buffer.position(buffer.position() + n * 8);
+                i += n;
+                flush(buffer, channel);
+            }
+            flush(buffer, channel);
+        });
+    }
+
+    void writePairs(String name, final Pairs pairs) {
+        submit(name, channel -> {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            buffer.putInt(pairs.size);
+            for (int i = 0; i < pairs.size; i++) {
+                if (buffer.remaining() < 16) {
+                    flush(buffer, channel);
+                }
+                buffer.putInt(pairs.ids1[i]).putInt(pairs.ids2[i]).putDouble(pairs.similarities[i]);
+            }
+            flush(buffer, channel);
+        });
+    }
+
+    /**
+     * Writes an empty file, a marker that a step is done.
+     */
+    void mark(String name) {
+        submit(name, channel -> { });
+    }
+
+    int[] readInts(String name) {
+        try (FileChannel channel = open(name)) {
+            final ByteBuffer buffer = read(channel, 4);
+            final int[] values = new int[buffer.getInt()];
+            for (int i = 0; i < values.length; ) {
+                final ByteBuffer chunk = read(channel, Math.min(values.length - i, BUFFER_SIZE / 4) * 4);
+                final int n = chunk.remaining() / 4;
+                chunk.asIntBuffer().get(values, i, n);
+                i += n;
+            }
+            return values;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    long[] readLongs(String name) {
+        try (FileChannel channel = open(name)) {
+            final ByteBuffer buffer = read(channel, 4);
+            final long[] values = new long[buffer.getInt()];
+            for (int i = 0; i < values.length; ) {
+                final ByteBuffer chunk = read(channel, Math.min(values.length - i, BUFFER_SIZE / 8) * 8);
+                final int n = chunk.remaining() / 8;
+                chunk.asLongBuffer().get(values, i, n);
+                i += n;
+            }
+            return values;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    Pairs readPairs(String name) {
+        try (FileChannel channel = open(name)) {
+            final int size = read(channel, 4).getInt();
+            final Pairs pairs = new Pairs();
+            for (int i = 0; i < size; ) {
+                final int n = Math.min(size - i, BUFFER_SIZE / 16);
+                final ByteBuffer chunk = read(channel, n * 16);
+                for (int j = 0; j < n; j++) {
+                    pairs.add(chunk.getInt(), chunk.getInt(), chunk.getDouble());
+                }
+                i += n;
+            }
+            return pairs;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Waits until every file asked for is on disk.
+     */
+    void await() {
+        try {
+            if (last != null) {
+                last.get();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Writing the checkpoint failed", e);
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits for the pending files and removes the whole checkpoint, for when the run is complete. Only a directory
+     * with the parameters file is a checkpoint, any other is left alone.
+     */
+    void delete() {
+        if (last != null) {
+            await();
+        }
+        if (!new File(directory, PARAMETERS).exists()) {
+            return;
+        }
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    void close() {
+        writer.shutdown();
+    }
+
+    private interface FileWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    private void checkFailure() {
+        if (failure.get() != null) {
+            throw new IllegalStateException("Writing the checkpoint failed", failure.get());
+        }
+    }
+
+    private void submit(final String name, final FileWriter fileWriter) {
+        //a file that failed before stops the run here, while it is still running
+        checkFailure();
+        last = writer.submit(() -> {
+            if (failure.get() != null) {
+                return;
+            }
+            final File temp = new File(directory, name + ".tmp");
+            try (RandomAccessFile file = new RandomAccessFile(temp, "rw"); FileChannel channel = file.getChannel()) {
+                file.setLength(0);
+                fileWriter.write(channel);
+                channel.force(false);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+                return;
+            }
+            try {
+                Files.move(temp.toPath(), new File(directory, name).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private FileChannel open(String name) throws IOException {
+        return new RandomAccessFile(new File(directory, name), "r").getChannel();
+    }
+
+    private static ByteBuffer read(FileChannel channel, int bytes) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(bytes);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Checkpoint file is shorter than expected");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Opens the input of the readers whether it is plain text, gzip or block gzip, so compressed dumps can be read
+ * directly without decompressing them to disk first. The format is found from the first bytes of the file.
+ *
+ * Block gzip is gzip cut in independent members of about one MiB each, the way BGZF does it: every member has its
+ * own size in an extra field of its header, so the next members can be found and inflated on other threads while
+ * the current one is read. It is still valid gzip, zcat and GZIPInputStream read it as usual. Convert a file with
+ *      java CompressedInput tweets.tsv tweets.tsv.gz
+ */
+final class CompressedInput {
+
+    static final int BLOCK_SIZE = 1 << 20;
+
+    //gzip header with FEXTRA, then one extra subfield 'L','Z' of 4 bytes with the size of the whole member
+    private static final int HEADER_SIZE = 20;
+    private static final int TRAILER_SIZE = 8;
+
+    /*
+     * One pool of inflaters for the whole process, shared by every block gzip stream that is open: a reader per
+     * file and files opened again do not add threads, and a stream that is dropped without close leaves none behind.
+     * Streams only wait for their own members, so they do not block each other beyond sharing the threads.
+     */
+    private static final int INFLATER_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService INFLATERS = Executors.newFixedThreadPool(INFLATER_THREADS, runnable -> {
+        final Thread thread = new Thread(runnable, "lsh-inflater");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private CompressedInput() {
+    }
+
+    /**
+     * Opens a file for reading, decompressing it on the fly if it is gzip or block gzip.
+     */
+    static InputStream open(File file) throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        in.mark(HEADER_SIZE);
+        final byte[] header = new byte[HEADER_SIZE];
+        final int n = in.readNBytes(header, 0, HEADER_SIZE);
+        in.reset();
+        if (n < 2 || (header[0] & 0xff) != 0x1f || (header[1] & 0xff) != 0x8b) {
+            return in;
+        }
+        if (n == HEADER_SIZE && isBlockHeader(header)) {
+            return new BlockInputStream(in, INFLATER_THREADS);
+        }
+        return new GZIPInputStream(in, 1 << 16);
+    }
+
+    private static boolean isBlockHeader(byte[] header) {
+        return (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b && header[2] == 8 && (header[3] & 4) != 0
+                && littleEndianShort(header, 10) == 8 && header[12] == 'L' && header[13] == 'Z'
+                && littleEndianShort(header, 14) == 4;
+    }
+
+    /**
+     * Reads block gzip, inflating the members ahead of the reader on the shared pool of inflaters. The members come
+     * out in file order, only the inflating is parallel.
+     */
+    static final class BlockInputStream extends InputStream {
+        private final InputStream in;
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        private final int maxPending;
+        private boolean endOfFile = false;
+        private byte[] block = new byte[0];
+        private int position = 0;
+
+        BlockInputStream(InputStream in, int threads) {
+            this.in = in;
+            this.maxPending = 2 * threads;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == block.length && !nextBlock()) {
+                return -1;
+            }
+            return block[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == block.length && !nextBlock()) {
+                return -1;
+            }
+            final int n = Math.min(length, block.length - position);
+            System.arraycopy(block, position, buffer, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            //the pool is shared, only the members of this stream are dropped
+            for (Future<byte[]> member : pending) {
+                member.cancel(true);
+            }
+            pending.clear();
+            in.close();
+        }
+
+        private boolean nextBlock() throws IOException {
+            do {
+                readAhead();
+                if (pending.isEmpty()) {
+                    return false;
+                }
+                try {
+                    block = pending.poll().get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Corrupt block gzip member", e.getCause());
+                }
+                position = 0;
+            } while (block.length == 0);
+            return true;
+        }
+
+        /*
+         * Reads whole members from the file and hands them to the inflaters until enough of them are in flight.
+         */
+        private void readAhead() throws IOException {
+            while (!endOfFile && pending.size() < maxPending) {
+                final byte[] header = new byte[HEADER_SIZE];
+                final int n = in.readNBytes(header, 0, HEADER_SIZE);
+                if (n == 0) {
+                    endOfFile = true;
+                    return;
+                }
+                if (n < HEADER_SIZE || !isBlockHeader(header)) {
+                    throw new IOException("Not a block gzip member");
+                }
+                final int memberSize = littleEndianInt(header, 16);
+                if (memberSize < HEADER_SIZE + TRAILER_SIZE) {
+                    throw new IOException("Block gzip member too small: " + memberSize);
+                }
+                final byte[] member = Arrays.copyOf(header, memberSize);
+                if (in.readNBytes(member, HEADER_SIZE, memberSize - HEADER_SIZE) != memberSize - HEADER_SIZE) {
+                    throw new EOFException("Truncated block gzip member");
+                }
+                pending.add(INFLATERS.submit(() -> inflate(member)));
+            }
+        }
+    }
+
+    private static byte[] inflate(byte[] member) throws DataFormatException {
+        final int trailer = member.length - TRAILER_SIZE;
+        final byte[] data = new byte[littleEndianInt(member, trailer + 4)];
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, HEADER_SIZE, trailer - HEADER_SIZE);
+            int n = 0;
+            while (n < data.length) {
+                final int inflated = inflater.inflate(data, n, data.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new DataFormatException("Block shorter than its size");
+                }
+                n += inflated;
+            }
+        } finally {
+            inflater.end();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != littleEndianInt(member, trailer)) {
+            throw new DataFormatException("Block CRC mismatch");
+        }
+        return data;
+    }
+
+    /**
+     * Compresses one block into a whole block gzip member.
+     */
+    static byte[] deflate(byte[] data, int length) {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final byte[] member = new byte[HEADER_SIZE + length + length / 100 + 64 + TRAILER_SIZE];
+        int size;
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            size = HEADER_SIZE + deflater.deflate(member, HEADER_SIZE, member.length - HEADER_SIZE - TRAILER_SIZE);
+            if (!deflater.finished()) {
+                throw new IllegalStateException("Block did not fit in its member");
+            }
+        } finally {
+            deflater.end();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        size += TRAILER_SIZE;
+        member[0] = 0x1f;
+        member[1] = (byte) 0x8b;
+        member[2] = 8;                  //deflate
+        member[3] = 4;                  //FEXTRA
+        member[9] = (byte) 0xff;        //unknown OS
+        putLittleEndian(member, 10, 8, 2);
+        member[12] = 'L';
+        member[13] = 'Z';
+        putLittleEndian(member, 14, 4, 2);
+        putLittleEndian(member, 16, size, 4);
+        putLittleEndian(member, size - 8, (int) crc.getValue(), 4);
+        putLittleEndian(member, size - 4, length, 4);
+        return Arrays.copyOf(member, size);
+    }
+
+    private static int littleEndianShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8;
+    }
+
+    private static int littleEndianInt(byte[] bytes, int offset) {
+        return littleEndianShort(bytes, offset) | littleEndianShort(bytes, offset + 2) << 16;
+    }
+
+    private static void putLittleEndian(byte[] bytes, int offset, int value, int length) {
+        for (int i = 0; i < length; i++) {
+            bytes[offset + i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    /**
+     * Converts a file (plain, gzip or block gzip) to block gzip, compressing the blocks in parallel.
+     * Usage: java CompressedInput input output [blockSize]
+     */
+    public static void main(String[] args) throws Exception {
+        final int blockSize = args.length > 2 ? Integer.parseInt(args[2]) : BLOCK_SIZE;
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final ExecutorService deflaters = Executors.newFixedThreadPool(threads);
+        final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+        try (InputStream in = open(new File(args[0]));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16)) {
+            while (true) {
+                final byte[] block = new byte[blockSize];
+                final int n = in.readNBytes(block, 0, blockSize);
+                if (n == 0) break;
+                pending.add(deflaters.submit(() -> deflate(block, n)));
+                if (pending.size() >= 2 * threads) {
+                    out.write(pending.poll().get());
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(pending.poll().get());
+            }
+        } finally {
+            deflaters.shutdown();
+        }
+    }
+}
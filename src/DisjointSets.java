@@ -0,0 +1,88 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Lock-free union-find over the documents, used to turn similar pairs into clusters of near duplicates.
+ *
+ * The forest is a primitive int[] where parent[d] == d marks a root. Roots are always linked from the bigger
+ * id to the smaller one, so the forest cannot get a cycle even when many threads union at the same time,
+ * and the root of a cluster is its smallest document id which we use as the cluster id.
+ * All writes are compare-and-set on the array cells through a VarHandle, find compresses paths by halving.
+ */
+final class DisjointSets {
+
+    private static final VarHandle PARENT = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private final int[] parent;
+
+    public DisjointSets(int numberOfDocuments) {
+        this.parent = new int[numberOfDocuments];
+        for (int i = 0; i < numberOfDocuments; i++) {
+            parent[i] = i;
+        }
+    }
+
+    /**
+     * @return the cluster id (the smallest document id of the cluster) of doc
+     */
+    public int find(int doc) {
+        while (true) {
+            final int p = (int) PARENT.getVolatile(parent, doc);
+            if (p == doc) {
+                return doc;
+            }
+            final int grandParent = (int) PARENT.getVolatile(parent, p);
+            if (p != grandParent) {
+                //path halving, losing this race is harmless cause someone else shortened the path
+                PARENT.compareAndSet(parent, doc, p, grandParent);
+            }
+            doc = p;
+        }
+    }
+
+    /**
+     * Puts doc1 and doc2 in the same cluster. Safe to call from many threads.
+     * @return true if they were in different clusters before
+     */
+    public boolean union(int doc1, int doc2) {
+        while (true) {
+            final int root1 = find(doc1);
+            final int root2 = find(doc2);
+            if (root1 == root2) {
+                return false;
+            }
+            final int big = Math.max(root1, root2);
+            final int small = Math.min(root1, root2);
+            //only succeeds if big is still a root, otherwise look for the roots again
+            if (PARENT.compareAndSet(parent, big, big, small)) {
+                return true;
+            }
+        }
+    }
+
+    public int size() {
+        return parent.length;
+    }
+
+    /**
+     * Cluster id of every document. Call it after all unions are done.
+     */
+    public int[] clusterIds() {
+        final int[] ids = new int[parent.length];
+        for (int doc = 0; doc < parent.length; doc++) {
+            ids[doc] = find(doc);
+        }
+        return ids;
+    }
+
+    /**
+     * Number of documents in every cluster, indexed by cluster id. Documents that are not a cluster id have 0.
+     */
+    public int[] clusterSizes(int[] clusterIds) {
+        final int[] sizes = new int[clusterIds.length];
+        for (int clusterId : clusterIds) {
+            sizes[clusterId]++;
+        }
+        return sizes;
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The files of the input and the global id of the first document of every file.
+ *
+ * The input is a single file, a directory (all its files) or a glob on the file names of a directory, like
+ * data/tweets-2020-*.tsv.gz. The documents of the files are numbered one after the other, the files of a directory
+ * or a glob in name order. For a single file nothing else is needed, ids are line numbers like they always were.
+ * For several files the documents of every file are counted once and the result is saved in a manifest:
+ *
+ *      base    documents    length    lastModified    path
+ *
+ * A later run with the same manifest keeps the ids of the files in it, and files that were added since get the ids
+ * after the last one. Only if a file of the manifest changed, went away or is not matched by the input anymore are
+ * all ids assigned again.
+ */
+final class InputManifest {
+
+    //unknown number of documents of a single file, it is read until maxFiles
+    static final int UNKNOWN = Integer.MAX_VALUE;
+
+    final String[] files;
+
+    //base[f] is the id of the first document of files[f], base[files.length] the number of documents
+    final int[] base;
+
+    private InputManifest(String[] files, int[] base) {
+        this.files = files;
+        this.base = base;
+    }
+
+    /**
+     * The manifest of a single file of which the documents are not counted.
+     */
+    static InputManifest single(String file) {
+        return new InputManifest(new String[]{file}, new int[]{0, UNKNOWN});
+    }
+
+    /**
+     * Finds the files of inputPath and their base ids.
+     * @param manifestPath where the manifest of several files is kept, null to not keep it
+     * @param threads threads to count the documents of new files with
+     */
+    static InputManifest resolve(String inputPath, String manifestPath, int threads) {
+        final List<File> found = listFiles(inputPath, manifestPath);
+        if (found == null) {
+            return single(inputPath);
+        }
+        try {
+            return resolve(found, manifestPath, threads);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * The documents of first followed by those of second, for a join of two inputs. A single file is counted first.
+     */
+    static InputManifest concat(InputManifest first, InputManifest second) {
+        try {
+            first = first.counted();
+            second = second.counted();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        final String[] files = Arrays.copyOf(first.files, first.files.length + second.files.length);
+        System.arraycopy(second.files, 0, files, first.files.length, second.files.length);
+        final int[] base = Arrays.copyOf(first.base, files.length + 1);
+        if ((long) first.documents() + second.documents() >= UNKNOWN) {
+            throw new IllegalArgumentException("More than " + (UNKNOWN - 1) + " documents in the inputs");
+        }
+        for (int f = 0; f <= second.files.length; f++) {
+            base[first.files.length + f] = first.documents() + second.base[f];
+        }
+        return new InputManifest(files, base);
+    }
+
+    private InputManifest counted() throws IOException {
+        return isSingleFile() ? new InputManifest(files, new int[]{0, countDocuments(new File(files[0]))}) : this;
+    }
+
+    boolean isSingleFile() {
+        return base[files.length] == UNKNOWN;
+    }
+
+    int documents() {
+        return base[files.length];
+    }
+
+    /**
+     * The file the document is in, 0 <= doc < documents().
+     */
+    int fileOf(int doc) {
+        final int i = Arrays.binarySearch(base, 0, files.length, doc);
+        if (i >= 0) {
+            //files without documents have the same base as the next one, the document is in the last of them
+            int f = i;
+            while (f + 1 < files.length && base[f + 1] == doc) f++;
+            return f;
+        }
+        return -i - 2;
+    }
+
+    /*
+     * The files of a directory or a glob in name order, null if inputPath is just a file.
+     */
+    private static List<File> listFiles(String inputPath, String manifestPath) {
+        final File path = new File(inputPath);
+        final File directory;
+        final String pattern;
+        if (path.isDirectory()) {
+            directory = path;
+            pattern = "*";
+        } else if (!path.exists() && path.getName().matches(".*[*?\\[{].*")) {
+            directory = path.getAbsoluteFile().getParentFile();
+            pattern = path.getName();
+        } else {
+            return null;
+        }
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        final File manifest = manifestPath != null ? new File(manifestPath).getAbsoluteFile() : null;
+        final File[] listed = directory.listFiles();
+        final List<File> files = new ArrayList<File>();
+        if (listed != null) {
+            for (File file : listed) {
+                if (file.isFile() && !file.isHidden() && matcher.matches(Paths.get(file.getName()))
+                        && !file.getAbsoluteFile().equals(manifest)) {
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No input files in " + inputPath);
+        }
+        files.sort((f1, f2) -> f1.getName().compareTo(f2.getName()));
+        return files;
+    }
+
+    private static InputManifest resolve(List<File> found, String manifestPath, int threads) throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        final List<Integer> counts = new ArrayList<Integer>();
+        boolean changed = true;
+
+        //the files of the manifest keep their place as long as none of them changed
+        final File manifestFile = manifestPath != null ? new File(manifestPath) : null;
+        if (manifestFile != null && manifestFile.exists()) {
+            changed = false;
+            final Set<String> foundPaths = new HashSet<String>();
+            for (File file : found) {
+                foundPaths.add(file.getAbsolutePath());
+            }
+            for (String line : Files.readAllLines(manifestFile.toPath(), StandardCharsets.UTF_8)) {
+                final String[] cols = line.split("\t", 5);
+                final File file = new File(cols[4]);
+                if (!foundPaths.contains(cols[4])) {
+                    System.out.println("Input file " + cols[4] + " is not in the input anymore, document ids are assigned again");
+                    paths.clear();
+                    counts.clear();
+                    changed = true;
+                    break;
+                }
+                if (!file.isFile() || file.length() != Long.parseLong(cols[2])
+                        || file.lastModified() != Long.parseLong(cols[3])) {
+                    System.out.println("Input file " + cols[4] + " changed, document ids are assigned again");
+                    paths.clear();
+                    counts.clear();
+                    changed = true;
+                    break;
+                }
+                paths.add(cols[4]);
+                counts.add(Integer.parseInt(cols[1]));
+            }
+        }
+
+        final Set<String> known = new HashSet<String>(paths);
+        final List<File> added = new ArrayList<File>();
+        for (File file : found) {
+            if (!known.contains(file.getAbsolutePath())) {
+                added.add(file);
+            }
+        }
+        final int[] addedCounts = countDocuments(added, threads);
+        for (int i = 0; i < added.size(); i++) {
+            paths.add(added.get(i).getAbsolutePath());
+            counts.add(addedCounts[i]);
+            changed = true;
+        }
+
+        final int[] base = new int[paths.size() + 1];
+        long total = 0;
+        for (int f = 0; f < paths.size(); f++) {
+            base[f] = (int) total;
+            total += counts.get(f);
+            if (total >= UNKNOWN) {
+                throw new IllegalArgumentException("More than " + (UNKNOWN - 1) + " documents in the input");
+            }
+        }
+        base[paths.size()] = (int) total;
+        final InputManifest manifest = new InputManifest(paths.toArray(new String[0]), base);
+        if (changed && manifestFile != null) {
+            manifest.write(manifestFile);
+        }
+        return manifest;
+    }
+
+    private void write(File manifestFile) throws IOException {
+        final File temp = new File(manifestFile.getPath() + ".tmp");
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (int f = 0; f < files.length; f++) {
+                final File file = new File(files[f]);
+                bw.write(base[f] + "\t" + (base[f + 1] - base[f]) + "\t" + file.length() + "\t" + file.lastModified()
+                        + "\t" + files[f]);
+                bw.newLine();
+            }
+        }
+        Files.move(temp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * Counts the documents, one per line, of every file on a pool of threads.
+     */
+    private static int[] countDocuments(List<File> files, int threads) throws IOException {
+        final int[] counts = new int[files.size()];
+        if (files.isEmpty()) return counts;
+        final ExecutorService counters = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            final List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (File file : files) {
+                results.add(counters.submit(() -> countDocuments(file)));
+            }
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = results.get(i).get();
+            }
+        } catch (Exception e) {
+            throw new IOException("Counting the documents of the input failed", e);
+        } finally {
+            counters.shutdown();
+        }
+        return counts;
+    }
+
+    private static int countDocuments(File file) throws IOException {
+        final byte[] buffer = new byte[1 << 16];
+        long lines = 0;
+        byte last = '\n';
+        try (InputStream in = CompressedInput.open(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    if (buffer[i] == '\n') lines++;
+                }
+                last = buffer[n - 1];
+            }
+        }
+        //a last line without a newline is a document too
+        if (last != '\n') lines++;
+        if (lines >= UNKNOWN) {
+            throw new IOException("Too many documents in " + file);
+        }
+        return (int) lines;
+    }
+}
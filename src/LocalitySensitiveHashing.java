@@ -3,20 +3,190 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.OutputStreamWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class LocalitySensitiveHashing {
 
-    final int nShingles;
+    int nShingles;
     final String inputPath;
     final int b;
     final int r;
-    private final int sizeOfBuckets;
-    final int maxFiles;
+    final int sizeOfBuckets;
+    int maxFiles;
     final double threshold;
     final String outputFile;
     final int shingleLength;
     final int signatureSize;
 
+    /*
+     * Result modes. By default every pair over the threshold is kept. With topN > 0 only the topN most similar
+     * pairs overall are kept, with topKPerDocument > 0 only the k most similar neighbours of every document.
+     * Both are bounded heaps, so memory is proportional to the k and not to the number of similar pairs.
+     */
+    int topN = 0;
+    int topKPerDocument = 0;
+    private BoundedPairHeap topPairs;
+    private NeighbourHeaps topNeighbours;
+
+    /*
+     * Near duplicate clustering. With clusters on, every confirmed pair is fed to a union-find over the documents
+     * and printClusters writes the cluster of every document. With materialisePairs off the pairs are not kept at all,
+     * only the clusters.
+     */
+    boolean clusters = false;
+    boolean materialisePairs = true;
+    DisjointSets documentClusters;
+
+    /*
+     * Exact duplicate short-circuit. When on, documents with exactly the same text are found from a 64 bit
+     * fingerprint of the text while reading, and only the first document of every group (the representative) is
+     * shingled, signed and banded. representatives[doc] is the representative of doc, doc itself if it has none.
+     * The other members of a group get the pairs of their representative, and similarity 1.0 between them, at the end.
+     * That is after the topN and top-k heaps, which would then no longer bound the output, so it cannot be used with
+     * either.
+     */
+    boolean skipExactDuplicates = false;
+    int[] representatives;
+    private static final int FINGERPRINT_SEED = 0x5eed1e55;
+
+    /*
+     * Band keys. With precomputeBandKeys on, the b band keys of every document are computed in one pass right after
+     * the signatures, as 64 bit MurmurHashes of the r rows of each band, into bandKeys[doc*b + band]. Banding then
+     * reads one long per document instead of hashing its signature again, and two documents are only candidates if
+     * their whole band key is equal, not just the cell of the buckets it falls in.
+     * With estimateSimilarities off the signature matrix is dropped as soon as the keys are there and every candidate
+     * is kept with similarity NaN, for when the candidates are checked some other way anyway (the second pass).
+     */
+    boolean precomputeBandKeys = false;
+    boolean estimateSimilarities = true;
+    long[] bandKeys;
+
+    /*
+     * Band collision counting. With minBandCollisions t > 1 a pair is only verified once it has collided in t of the
+     * b bands: the collisions of every pair are counted in bandCollisions, and the pair is verified (or, without
+     * estimated similarities, passed on) in the band its count reaches t, and never again. The probability that a
+     * pair of similarity s gets through is then P(at least t of b bands) with s^r a band instead of
+     * 1 - (1 - s^r)^b, a steeper S-curve for the same signatures, and the many pairs that collide in one band by
+     * chance are not verified. The counts cost a map entry for every pair that collides at all. A collision is an
+     * equal band, checked on the band keys or else on the rows of the band, not just the same cell of the buckets.
+     */
+    int minBandCollisions = 1;
+    private LongIntHashMap bandCollisions;
+
+    /*
+     * Size filter. The Jaccard similarity of two sets is at most min(|A|,|B|)/max(|A|,|B|) (the weighted one too), so
+     * with sizeFilter on the size of the shingle set of every document is kept in setSizes while signing, and a pair
+     * whose sizes are too far apart to reach the threshold is dropped before its signatures are compared or it is
+     * passed on. The members of a bucket are sorted by size first, so the pairs of a document stop at the first
+     * member that is too big.
+     */
+    boolean sizeFilter = false;
+    int[] setSizes;
+
+    /*
+     * Partitioned banding. The buckets of a band are made in bandPartitions passes over the documents, and pass p
+     * only keeps the documents whose cell c of the buckets has c % bandPartitions == p, in an array of
+     * sizeOfBuckets / bandPartitions cells. Documents in the same cell are in the same pass, so the pairs are the
+     * same, but a pass needs about 1/bandPartitions of the memory of the whole band, for the price of hashing the
+     * band of every document in every pass. With bandingMemory > 0 (bytes) the number of passes is chosen so that
+     * one fits in it, see bandPartitions().
+     */
+    int bandPartitions = 1;
+    long bandingMemory = 0;
+
+    /*
+     * Parallel verification. With verifyThreads > 1 the pairs of the buckets of a band are verified on a
+     * work-stealing pool, giant buckets split in stripes of rows, see verifyInParallel. The pairs are still collected
+     * on one thread and in the same order, so the result is the same. minBandCollisions > 1 keeps it on one thread.
+     */
+    int verifyThreads = 1;
+    private ForkJoinPool verifyPool;
+
+    //signatures computed elsewhere, used instead of computing them, see ParameterSweep
+    int[] givenSignatures;
+
+    /*
+     * b-bit signatures. With bBits > 0 (1, 2, 4 or 8) only the lowest bBits of every MinHash value are kept and
+     * the full signature matrix is never allocated. Every document is signed in a scratch array, its band keys
+     * are computed right away, and then only the packed low bits are stored.
+     */
+    int bBits = 0;
+    private BBitSignatures bBitSignatures;
+
+    /*
+     * Weighted similarity. With weighted on, the documents are shingle multisets instead of sets, so a shingle that
+     * is repeated counts more, and the similarity is the weighted Jaccard of the shingle counts, see Shingler.multiset.
+     * The signatures have the same layout, everything after shingling works unchanged.
+     */
+    boolean weighted = false;
+
+    /*
+     * Shingling. normalise is a comma separated list of what to normalise before shingling (lowercase, urls, mentions,
+     * whitespace or all, see Shingler.normalise), with wordShingles the shingles are shingleLength words instead of
+     * characters. With normalisation on, exact duplicates are found on the normalised text too.
+     */
+    String normalise = "";
+    boolean wordShingles = false;
+
+    /*
+     * Sizing nShingles. With nShingles 0 (not given, or auto) a pre-pass over the input estimates the number of
+     * distinct shingles with a HyperLogLog sketch, see ShingleSketch, and nShingles is set for a collision rate of
+     * targetCollisionRate. With sketchShingles on the pre-pass also runs for a given nShingles, and only reports its
+     * collision rate and the nShingles it should be. sketchDocuments is about how many documents are shingled for
+     * the sketch, 0 for all of them. The automatic nShingles is at most what gives a MinHash memo table of half the
+     * heap, the collision rate it ends up with is reported either way.
+     */
+    double targetCollisionRate = 0.01;
+    boolean sketchShingles = false;
+    int sketchDocuments = 100000;
+    ShingleSketch.Estimate shingleEstimate;
+
+    /*
+     * Pipelined ingest. With ingestThreads > 0 reading, shingling and MinHash run as a pipeline on a reader thread
+     * and ingestThreads worker threads, see SignaturePipeline. The signatures are the same as the sequential ones.
+     */
+    int ingestThreads = 0;
+
+    /*
+     * Input of several files. When inputPath is a directory or a glob the documents of its files get global ids one
+     * file after the other, from the manifest kept in manifestPath (by default next to the output), see InputManifest.
+     * With ingestThreads > 0 the files are read by readerThreads threads in parallel, 0 means one per core.
+     * Exact duplicates need the documents in order, with those there is one reader.
+     */
+    String manifestPath = null;
+    int readerThreads = 0;
+    private InputManifest input;
+
+    /*
+     * R-S join. With a joinInputPath its documents get the ids after the ones of inputPath, and only the pairs of a
+     * document of inputPath (the archive) with one of joinInputPath (the new documents) are found. The members of a
+     * bucket are in id order, so the rows of the archive members only go through the new members and the rows of the
+     * new members are skipped altogether; with the size filter they are in size order and every pair is checked.
+     * rightSideStart is the id of the first document of joinInputPath.
+     */
+    String joinInputPath = null;
+    int rightSideStart = 0;
+
+    /*
+     * Instrumentation. With collectMetrics on, the time of every phase and band, the pair counters and the bucket
+     * sizes are collected and printMetrics writes them as JSON. When it is off metrics stays null and the only
+     * cost left is the JFR events, which are free unless a recording is running.
+     */
+    boolean collectMetrics = false;
+    RunMetrics metrics;
+
+    /*
+     * Checkpoints. With a checkpointDir the signatures are saved as soon as they are computed and the pairs found in
+     * every band as soon as the band is done, see Checkpoint. A run started again with the same parameters loads the
+     * signatures instead of computing them and replays the pairs of the bands that were done, in the order they were
+     * found, so the heaps and the clusters end up exactly as in a run that never stopped.
+     */
+    String checkpointDir = null;
+    Checkpoint checkpoint;
+    private Checkpoint.Pairs bandPairs;
 
     public LocalitySensitiveHashing(int shingleLength, int nShingles, String inputPath, int b, int r, int sizeOfBuckets, int maxFiles, double threshold, String outputFile) {
         this.shingleLength = shingleLength;
@@ -37,7 +207,17 @@ public class LocalitySensitiveHashing {
      * @param band the band for which we want to find the similar pairs. 0 <= band < this.b
      * @return the candidate pairs of this band
      */
-    private MyPrimitiveArrayList[] computeCandidatePairsForBand(int[] docSignatures, int band){
+    MyPrimitiveArrayList[] computeCandidatePairsForBand(int[] docSignatures, int band){
+        return computeCandidatePairsForBand(docSignatures, band, 0, 1);
+    }
+
+    /**
+     * Compute the candidate pairs of one pass of a band, see bandPartitions.
+     * @param partition the pass, only the documents of the cells c with c % partitions == partition are kept
+     * @param partitions the number of passes
+     * @return the candidate pairs of the pass, the list of cell c at c / partitions
+     */
+    MyPrimitiveArrayList[] computeCandidatePairsForBand(int[] docSignatures, int band, int partition, int partitions){
 
         /*
          * I need b buckets where I will keep track of all the documents that have been hashed there.
@@ -57,39 +237,25 @@ public class LocalitySensitiveHashing {
 
 
         //This array keeps the candidate pairs for the band given as input
-        MyPrimitiveArrayList[] candidatePairs = new MyPrimitiveArrayList[this.sizeOfBuckets];
+        MyPrimitiveArrayList[] candidatePairs = new MyPrimitiveArrayList[(this.sizeOfBuckets - partition + partitions - 1) / partitions];
 
-        //Declare a temp byte array with size equal to signature*4 (cause 1 int = 4bytes)
-        byte[] oneSignatureAsByte = new byte[signatureSize*4];
+        //Declare a temp byte array with size equal to r*4 (cause 1 int = 4bytes)
+        byte[] bandAsBytes = new byte[r*4];
 
         //Do LSH
         for(int currentDocumentId=0; currentDocumentId<maxFiles; currentDocumentId++){
-            //for all b partitions of the rows (buckets)
-
-            // Get the byte representation of a signature
-            // Avoid creating and initializing dummy arrays all the time,
-            // just initialize one array beforehand, and always use the same array for all signatures
-            integersToBytes(docSignatures,
-                    currentDocumentId*signatureSize, signatureSize, oneSignatureAsByte);
-
-
-            // Get the MurmurHash of part of the array,
-            // Note: we use *4 cause we are not working with int any more but with byte
-            // Part of the array cause, we split the signature in b parts
-            int rRowsHash = MurmurHash.myMurmurHash32(oneSignatureAsByte, (band*r*4), ((band+1)*r*4) -1);
-
-            //bring the size of the hash to the size of the buckets
-            rRowsHash = rRowsHash%sizeOfBuckets;
-
-            /*
-             * if hash is negative bring it to positive
-             * NOTE: there is no bug for hash=Math.MIN_VALUE
-             * cannot happen cause size of buckets = Math.MAX_VALUE therefore max value I have is Math.abs(Math.MAX_VALUE)
-             * therefore Math.MIN_VALUE impossible
-             */
+            //exact duplicates are not banded, their representative is
+            if(representatives != null && representatives[currentDocumentId] != currentDocumentId){
+                continue;
+            }
 
-            if(rRowsHash < 0){
-                rRowsHash = - rRowsHash;
+            //With the band keys there is no need to look at the signature at all
+            int rRowsHash = bandKeys != null
+                    ? (int) Long.remainderUnsigned(bandKeys[currentDocumentId*b + band], sizeOfBuckets)
+                    : bandBucket(docSignatures, currentDocumentId*signatureSize, band, bandAsBytes);
+            if(partitions > 1){
+                if(rRowsHash % partitions != partition) continue;
+                rRowsHash /= partitions;
             }
 
             /*
@@ -111,31 +277,210 @@ public class LocalitySensitiveHashing {
         return candidatePairs;
     }
 
+    /**
+     * Hashes the r rows of a band of a signature to a cell of the buckets.
+     * @param signatures the array with the signature
+     * @param signatureStart the index of the first row of the signature in the array
+     * @param band the band, 0 <= band < this.b
+     * @param bandAsBytes a temp array of r*4 bytes, reused between calls to avoid creating dummy arrays all the time
+     * @return the cell of the buckets the band hashes to
+     */
+    int bandBucket(int[] signatures, int signatureStart, int band, byte[] bandAsBytes){
+        // Get the byte representation of the rows of the band only, the rest of the signature is not hashed anyway
+        integersToBytes(signatures, signatureStart + band*r, r, bandAsBytes);
+
+        // Get the MurmurHash of the band
+        int rRowsHash = MurmurHash.myMurmurHash32(bandAsBytes, 0, (r*4) -1);
+
+        //bring the size of the hash to the size of the buckets
+        rRowsHash = rRowsHash%sizeOfBuckets;
+
+        /*
+         * if hash is negative bring it to positive
+         * NOTE: there is no bug for hash=Math.MIN_VALUE
+         * cannot happen cause size of buckets = Math.MAX_VALUE therefore max value I have is Math.abs(Math.MAX_VALUE)
+         * therefore Math.MIN_VALUE impossible
+         */
+
+        if(rRowsHash < 0){
+            rRowsHash = - rRowsHash;
+        }
+        return rRowsHash;
+    }
+
     public Set<SimilarPair> DoLSH(){
+        return expandExactDuplicates(findSimilarPairs());
+    }
+
+    /**
+     * Finds the similar pairs from the signatures. When exact duplicates are skipped these are only
+     * pairs between representatives.
+     */
+    Set<SimilarPair> findSimilarPairs(){
+        if(joinInputPath != null && skipExactDuplicates){
+            //the pairs of the representatives would decide for their duplicates on either side
+            throw new IllegalStateException("skipExactDuplicates cannot be used in an R-S join");
+        }
+        if((topN > 0 || topKPerDocument > 0) && skipExactDuplicates){
+            //the duplicates are expanded after the heaps, there would be more than topN pairs or k neighbours
+            throw new IllegalStateException("skipExactDuplicates cannot be used with topN or topK");
+        }
+        if(collectMetrics){
+            startMetrics();
+        }
+        sizeShingles();
+
+        checkpoint = checkpointDir != null ? new Checkpoint(checkpointDir, checkpointParameters()) : null;
+        boolean bandsDone = checkpoint != null;
+        for(int band=0; band<b && bandsDone; band++){
+            bandsDone = checkpoint.has(bandFile(band));
+        }
 
         //Compute the MinHash signatures for all documents and store them in a 1d int array
-        int[] docSignatures = computeMinHashSignatures();
+        RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("signatures");
+        int[] docSignatures = null;
+        if(bandsDone){
+            //every band is in the checkpoint, the signatures are not needed anymore
+            if(checkpoint.has("representatives")) representatives = checkpoint.readInts("representatives");
+        }else if(checkpoint != null && checkpoint.has("signatures.done")){
+            docSignatures = loadSignatures();
+        }else if(givenSignatures != null){
+            docSignatures = givenSignatures;
+            givenSignatures = null;
+        }else{
+            docSignatures = computeMinHashSignatures();
+            if(checkpoint != null) saveSignatures(docSignatures);
+        }
+        RunMetrics.endPhase(phase, metrics);
+
+        if(!bandsDone && (precomputeBandKeys || !estimateSimilarities) && bandKeys == null){
+            phase = RunMetrics.beginPhase("bandKeys");
+            bandKeys = computeBandKeys(docSignatures);
+            RunMetrics.endPhase(phase, metrics);
+        }
+        if(!estimateSimilarities){
+            if((topN > 0 || topKPerDocument > 0) && confirmsPairs()){
+                throw new IllegalStateException("the top-k modes need the estimated similarities");
+            }
+            //only the band keys are needed from now on
+            docSignatures = null;
+        }
 
         //HashSet that keeps all similarPairs. I am using a Set cause I do not want duplicates
         Set<SimilarPair> similarPairs = new HashSet<SimilarPair>();
 
+        //In a top-k mode the pairs go to the heaps first and only the survivors end up in the set
+        if(topN > 0 && topKPerDocument > 0){
+            throw new IllegalStateException("topN and topKPerDocument cannot be used together");
+        }
+        //pairs that are checked again only go to the heaps once they pass, see keepTop
+        topPairs = topN > 0 && confirmsPairs() ? new BoundedPairHeap(topN) : null;
+        topNeighbours = topKPerDocument > 0 && confirmsPairs() ? new NeighbourHeaps(maxFiles, topKPerDocument) : null;
+        documentClusters = clusters && confirmsPairs() ? new DisjointSets(maxFiles) : null;
+        bandCollisions = minBandCollisions > 1 ? new LongIntHashMap(maxFiles) : null;
+
+        final int partitions = bandPartitions();
+        if(metrics != null) metrics.gauge("banding.partitions", partitions);
+        //its workers are daemon threads, a failed run does not hang on them
+        verifyPool = verifyThreads > 1 ? new ForkJoinPool(verifyThreads) : null;
+        phase = RunMetrics.beginPhase("banding");
         for(int band=0; band<b; band++){
-            //Compute candidate pairs for a band
-            MyPrimitiveArrayList[] candidatePairsForBand = computeCandidatePairsForBand(docSignatures, band);
+            if(checkpoint != null && checkpoint.has(bandFile(band))){
+                //the bands still to do need the counts of this one
+                if(bandCollisions != null && !bandsDone){
+                    for(int partition=0; partition<partitions; partition++){
+                        countBandCollisions(computeCandidatePairsForBand(docSignatures, band, partition, partitions),
+                                band, docSignatures);
+                    }
+                }
+                replayPairs(checkpoint.readPairs(bandFile(band)), similarPairs);
+                if(metrics != null) metrics.add("bandsResumed", 1);
+                continue;
+            }
+            bandPairs = checkpoint != null ? new Checkpoint.Pairs() : null;
+
+            final RunMetrics.BandEvent bandEvent = new RunMetrics.BandEvent();
+            bandEvent.begin();
+            bandEvent.band = band;
+
+            for(int partition=0; partition<partitions; partition++){
+                //Compute candidate pairs for a band
+                final long candidateStart = System.nanoTime();
+                MyPrimitiveArrayList[] candidatePairsForBand =
+                        computeCandidatePairsForBand(docSignatures, band, partition, partitions);
+                final long verificationStart = System.nanoTime();
 
-            //Add all similar pairs, i.e. pairs of documents that have been identified as having a similarity bigger
-            //than the threshold, from that band to the set
-            getSimilarPairs(candidatePairsForBand, docSignatures, threshold, similarPairs);
+                //Add all similar pairs, i.e. pairs of documents that have been identified as having a similarity
+                //bigger than the threshold, from that band to the set
+                getSimilarPairs(candidatePairsForBand, band, docSignatures, candidateThreshold(), similarPairs,
+                        bandEvent);
 
+                bandEvent.candidateNanos += verificationStart - candidateStart;
+                bandEvent.verificationNanos += System.nanoTime() - verificationStart;
+            }
+            bandEvent.commit();
+            if(metrics != null){
+                metrics.band(bandEvent);
+            }
+            if(bandPairs != null){
+                checkpoint.writePairs(bandFile(band), bandPairs);
+                bandPairs = null;
+            }
+        }
+        RunMetrics.endPhase(phase, metrics);
+        if(verifyPool != null){
+            verifyPool.shutdown();
+            verifyPool = null;
         }
         docSignatures = null;
+        bBitSignatures = null;
+        bandKeys = null;
+        setSizes = null;
+        if(bandCollisions != null && metrics != null){
+            metrics.add("collidingPairs", bandCollisions.size());
+        }
+        bandCollisions = null;
+
+        if(topPairs != null){
+            topPairs.drainTo(similarPairs);
+            topPairs = null;
+        }else if(topNeighbours != null){
+            topNeighbours.drainTo(similarPairs);
+            topNeighbours = null;
+        }else{
+            return similarPairs;
+        }
+
+        //In the top-k modes the clusters are made of the pairs that survived the heaps
+        if(documentClusters != null){
+            for(SimilarPair sp : similarPairs){
+                documentClusters.union(sp.getId1(), sp.getId2());
+            }
+            if(!materialisePairs){
+                similarPairs.clear();
+            }
+        }
         return similarPairs;
     }
 
+    /**
+     * Computes the signatures of all documents and nothing else, see ParameterSweep.
+     */
+    int[] computeSignatures(){
+        if(collectMetrics){
+            startMetrics();
+        }
+        sizeShingles();
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("signatures");
+        final int[] docSignatures = computeMinHashSignatures();
+        RunMetrics.endPhase(phase, metrics);
+        return docSignatures;
+    }
+
     private int[] computeMinHashSignatures(){
         //Get all the data from the files
-        final Shingler shingler = new Shingler(this.shingleLength, this.nShingles);
-        final TwitterReader reader = new TwitterReader(this.maxFiles, shingler, this.inputPath);
+        final Shingler shingler = newShingler();
+        final InputManifest manifest = inputManifest();
 
 
         //the size of the signature, or number of different hash functions, is b*r
@@ -144,67 +489,861 @@ public class LocalitySensitiveHashing {
 
         //Single dimensional array has advantage of locality + lower overhead over 2D array
 
-        final int[] docSignatures = new int[signatureSize * this.maxFiles]; //array max sie is Integer.MAX_VALUE - 5!
         final MinHash minHash = new MinHash(signatureSize, nShingles);
 
+        final int[] docSignatures;
+        if(bBits > 0){
+            //the b-bit signatures replace the full ones
+            bBitSignatures = new BBitSignatures(bBits, signatureSize, this.maxFiles);
+            bandKeys = new long[b * this.maxFiles];
+            docSignatures = null;
+        }else{
+            docSignatures = new int[signatureSize * this.maxFiles]; //array max sie is Integer.MAX_VALUE - 5!
+        }
+        setSizes = sizeFilter ? new int[this.maxFiles] : null;
+        final SignaturePipeline.DocumentFilter duplicates = skipExactDuplicates ? exactDuplicateFilter(shingler) : null;
+
+        //Reading, shingling and signing overlap on several threads
+        if(ingestThreads > 0 && !manifest.isSingleFile() && duplicates == null){
+            //like TwitterReader.hasNext the last document is never read
+            final int documents = new SignaturePipeline(ingestThreads).run(manifest, this.maxFiles - 1,
+                    readerThreads(), shingler, () -> documentSigner(minHash, docSignatures));
+            if(metrics != null) metrics.add("documents", documents);
+            return docSignatures;
+        }
+        final TwitterReader reader = new TwitterReader(this.maxFiles, shingler, manifest);
+        if(ingestThreads > 0){
+            final int documents = new SignaturePipeline(ingestThreads).run(reader, shingler, duplicates,
+                    () -> documentSigner(minHash, docSignatures));
+            if(metrics != null) metrics.add("documents", documents);
+            return docSignatures;
+        }
+
+        if(duplicates != null || bBitSignatures != null){
+            final SignaturePipeline.DocumentSigner signer = documentSigner(minHash, docSignatures);
+            int idCounter = 0;
+            while(reader.hasNext()) {
+                final String text = reader.nextText();
+                if(duplicates == null || !duplicates.skip(text, idCounter)){
+                    signer.sign(shingler.shingle(text), idCounter);
+                }
+                idCounter++;
+            }
+            if(metrics != null) metrics.add("documents", idCounter);
+            return docSignatures;
+        }
+
+        //reading and shingling happen together in the reader, the MinHash after it
+        long readNanos = 0;
+        long minHashNanos = 0;
+
         int idCounter = 0;
         while(reader.hasNext()) { //while not end of documents
+            final long readStart = metrics != null ? System.nanoTime() : 0;
             final Set<Integer> document = reader.next(); //read next document
+            final long minHashStart = metrics != null ? System.nanoTime() : 0;
             minHash.getSignature(document, docSignatures, idCounter*signatureSize);
+            if(setSizes != null) setSizes[idCounter] = document.size();
+            if(metrics != null){
+                readNanos += minHashStart - readStart;
+                minHashNanos += System.nanoTime() - minHashStart;
+            }
             idCounter++;
 
         }
+        if(metrics != null){
+            metrics.addPhase("signatures.readAndShingle", readNanos);
+            metrics.addPhase("signatures.minHash", minHashNanos);
+            metrics.add("documents", idCounter);
+        }
         return docSignatures;
     }
 
+    /**
+     * Runs the pre-pass of the shingle sketch if it is asked for, and sets nShingles if it was not given.
+     */
+    void sizeShingles(){
+        //every engine starts here, maxFiles has to be final before anything is sized by it
+        inputManifest();
+        if(shingleEstimate != null || (nShingles > 0 && !sketchShingles)){
+            return;
+        }
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("shingleSketch");
+        final Shingler shingler = newShingler();
+        final InputManifest manifest = inputManifest();
+        //like TwitterReader.hasNext the last document is never read
+        final int expected = Math.min(maxFiles - 1, manifest.documents());
+        shingleEstimate = ShingleSketch.sample(new TwitterReader(maxFiles, shingler, manifest), shingler, expected,
+                sketchDocuments);
+        RunMetrics.endPhase(phase, metrics);
+
+        final int recommended = ShingleSketch.nShinglesFor(shingleEstimate.distinct, targetCollisionRate);
+        if(nShingles <= 0){
+            //the memo table of MinHash has signatureSize ints per shingle, it gets at most half the heap
+            final long memoLimit = Runtime.getRuntime().maxMemory() / 2 / (4L * signatureSize);
+            nShingles = (int) Math.min(recommended, memoLimit);
+        }
+        System.out.println("Shingle sketch: " + shingleEstimate.describe(nShingles) + ", nShingles " + recommended
+                + " for collision rate " + targetCollisionRate + " (MinHash memo of "
+                + ((long) signatureSize * recommended * 4 >> 20) + " MB)"
+                + (nShingles < recommended ? ", more than half the heap" : ""));
+        if(metrics != null){
+            metrics.parameter("nShingles", nShingles);
+            metrics.parameter("targetCollisionRate", targetCollisionRate);
+            metrics.parameter("sketchDocuments", sketchDocuments);
+            metrics.gauge("shingles.distinct", shingleEstimate.distinct);
+            metrics.gauge("shingles.sampledDocuments", shingleEstimate.sampled);
+            metrics.gauge("shingles.growth", shingleEstimate.growth);
+            metrics.gauge("shingles.collisionRate", ShingleSketch.collisionRate(shingleEstimate.distinct, nShingles));
+            metrics.gauge("shingles.recommendedNShingles", recommended);
+        }
+    }
+
+    Shingler newShingler(){
+        final Shingler shingler = new Shingler(shingleLength, nShingles, weighted);
+        shingler.normalise(normalise);
+        shingler.words = wordShingles;
+        return shingler;
+    }
+
+    /**
+     * The files of the input, resolved once. maxFiles is cut down to the documents there are, so nothing is sized
+     * for documents that are never read: their signatures would all be 0 and collide in every band.
+     */
+    InputManifest inputManifest(){
+        if(input == null){
+            final String manifestFile = manifestPath != null ? manifestPath : outputFile + "MANIFEST";
+            input = InputManifest.resolve(inputPath, manifestFile, readerThreads());
+            if(joinInputPath != null){
+                final InputManifest archive = input;
+                input = InputManifest.concat(archive,
+                        InputManifest.resolve(joinInputPath, manifestFile + "JOIN", readerThreads()));
+                rightSideStart = input.base[archive.files.length];
+                //like TwitterReader.hasNext the last document is never read
+                if(rightSideStart >= maxFiles - 1){
+                    throw new IllegalArgumentException("maxFiles " + maxFiles + " does not reach the documents of "
+                            + joinInputPath + ", they start at " + rightSideStart);
+                }
+            }
+            //like TwitterReader.hasNext the last document is never read, one more keeps every document read
+            if(input.documents() < maxFiles - 1){
+                maxFiles = input.documents() + 1;
+            }
+        }
+        return input;
+    }
+
+    int readerThreads(){
+        return readerThreads > 0 ? readerThreads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /*
+     * Looks up the fingerprint of the text of every document. If the text was seen before the document is just
+     * recorded as a duplicate, no shingles and no signature. Must see the documents in order.
+     */
+    private SignaturePipeline.DocumentFilter exactDuplicateFilter(Shingler shingler){
+        representatives = new int[maxFiles];
+        for(int doc=0; doc<maxFiles; doc++){
+            representatives[doc] = doc;
+        }
+        final LongIntHashMap fingerprints = new LongIntHashMap(Math.min(maxFiles, 1 << 20));
+
+        return (text, doc) -> {
+            final long fingerprint = shingler.fingerprint(text, FINGERPRINT_SEED);
+            final int representative = fingerprints.get(fingerprint, -1);
+            if(representative >= 0){
+                representatives[doc] = representative;
+                return true;
+            }
+            fingerprints.put(fingerprint, doc);
+            return false;
+        };
+    }
+
+    /*
+     * Saves everything the signatures phase leaves behind. The arrays are not changed after this phase, so the
+     * checkpoint writer can go through them while banding goes on. signatures.done is written last.
+     */
+    private void saveSignatures(int[] docSignatures){
+        if(docSignatures != null) checkpoint.writeInts("signatures", docSignatures);
+        if(bBitSignatures != null) checkpoint.writeLongs("bBits", bBitSignatures.words());
+        if(bandKeys != null) checkpoint.writeLongs("bandKeys", bandKeys);
+        if(representatives != null) checkpoint.writeInts("representatives", representatives);
+        if(setSizes != null) checkpoint.writeInts("setSizes", setSizes);
+        checkpoint.mark("signatures.done");
+    }
+
+    private int[] loadSignatures(){
+        if(checkpoint.has("representatives")) representatives = checkpoint.readInts("representatives");
+        if(checkpoint.has("setSizes")) setSizes = checkpoint.readInts("setSizes");
+        if(checkpoint.has("bandKeys")) bandKeys = checkpoint.readLongs("bandKeys");
+        if(bBits > 0){
+            bBitSignatures = new BBitSignatures(bBits, signatureSize, maxFiles);
+            final long[] words = checkpoint.readLongs("bBits");
+            System.arraycopy(words, 0, bBitSignatures.words(), 0, words.length);
+            return null;
+        }
+        return checkpoint.readInts("signatures");
+    }
+
+    /*
+     * Feeds the pairs of a band from the checkpoint to the result again, in the order they were found.
+     */
+    private void replayPairs(Checkpoint.Pairs pairs, Set<SimilarPair> similarPairs){
+        for(int i=0; i<pairs.size; i++){
+            collectPair(pairs.ids1[i], pairs.ids2[i], pairs.similarities[i], similarPairs);
+        }
+    }
+
+    private static String bandFile(int band){
+        return "band-" + band;
+    }
+
+    /**
+     * Everything that changes the result of the run. A checkpoint is only used by a run with the same parameters.
+     */
+    String checkpointParameters(){
+        final StringBuilder files = new StringBuilder();
+        for(String path : inputManifest().files){
+            final File file = new File(path);
+            files.append("input=").append(file.getAbsolutePath()).append('\t').append(file.length()).append('\t')
+                    .append(file.lastModified()).append('\n');
+        }
+        return "engine=" + getClass().getSimpleName() + "\n"
+                + files
+                + "maxFiles=" + maxFiles + "\n"
+                + "rightSideStart=" + rightSideStart + "\n"
+                + "shingleLength=" + shingleLength + "\n"
+                + "nShingles=" + nShingles + "\n"
+                + "b=" + b + "\n"
+                + "r=" + r + "\n"
+                + "numberOfBuckets=" + sizeOfBuckets + "\n"
+                + "threshold=" + threshold + "\n"
+                + "topN=" + topN + "\n"
+                + "topK=" + topKPerDocument + "\n"
+                + "clusters=" + clusters + "\n"
+                + "pairs=" + materialisePairs + "\n"
+                + "skipExactDuplicates=" + skipExactDuplicates + "\n"
+                + "bBits=" + bBits + "\n"
+                + "weighted=" + weighted + "\n"
+                + "normalise=" + normalise + "\n"
+                + "wordShingles=" + wordShingles + "\n"
+                + "bandKeys=" + precomputeBandKeys + "\n"
+                + "minBandCollisions=" + minBandCollisions + "\n"
+                + "sizeFilter=" + sizeFilter + "\n"
+                + "estimateSimilarities=" + estimateSimilarities + "\n";
+    }
+
+    /**
+     * The number of passes of a band: bandPartitions, or with a bandingMemory the least number whose pass fits in it.
+     * A pass takes about 8 bytes per cell of the buckets (the array of lists) and, when every document has a cell of
+     * its own, 56 bytes per document (the list, its array and the id), both divided by the number of passes.
+     */
+    int bandPartitions(){
+        if(bandingMemory <= 0){
+            return Math.max(1, bandPartitions);
+        }
+        final double bytes = 8.0 * sizeOfBuckets + 56.0 * maxFiles;
+        final int partitions = (int) Math.min(sizeOfBuckets, Math.ceil(bytes / bandingMemory));
+        if(partitions > 1){
+            System.out.println("Banding in " + partitions + " passes a band to stay within "
+                    + bandingMemory / (1024 * 1024) + " MB");
+        }
+        return Math.max(1, partitions);
+    }
+
+    /**
+     * The estimated similarity a pair needs to be found, the threshold unless something checks the pairs afterwards.
+     */
+    double candidateThreshold(){
+        return threshold;
+    }
+
+    /**
+     * Removes the checkpoint, to be called once the output is written.
+     */
+    void clearCheckpoint(){
+        if(checkpoint == null) return;
+        checkpoint.delete();
+        checkpoint.close();
+        checkpoint = null;
+    }
+
+    /**
+     * Computes the b band keys of every document in one sequential pass over the signature matrix.
+     * @param docSignatures the minHash signatures of the documents
+     * @return the band keys, the key of band of doc is at doc*b + band
+     */
+    long[] computeBandKeys(int[] docSignatures){
+        final long[] keys = new long[b * maxFiles];
+        final byte[] bandAsBytes = new byte[r*4];
+        for(int doc=0; doc<maxFiles; doc++){
+            if(representatives != null && representatives[doc] != doc) continue;
+            computeBandKeys(docSignatures, doc*signatureSize, doc, bandAsBytes, keys);
+        }
+        return keys;
+    }
+
+    private void computeBandKeys(int[] signatures, int signatureStart, int doc, byte[] bandAsBytes, long[] keys){
+        for(int band=0; band<b; band++){
+            keys[doc*b + band] = bandKey(signatures, signatureStart + band*r, r, bandAsBytes);
+        }
+    }
+
+    /**
+     * The 64 bit key of the r rows of a signature starting at bandStart.
+     * @param bandAsBytes scratch space of r*4 bytes
+     */
+    static long bandKey(int[] signatures, int bandStart, int r, byte[] bandAsBytes){
+        integersToBytes(signatures, bandStart, r, bandAsBytes);
+        return MurmurHash.hash64(bandAsBytes, r*4);
+    }
+
+    /*
+     * Signs documents into the signature matrix, or in the b-bit mode into the b-bit signatures and the band keys.
+     * Every document only writes its own cells, so signers of different threads do not get in each other's way,
+     * but a signer has its own scratch arrays and must stay on one thread.
+     */
+    private SignaturePipeline.DocumentSigner documentSigner(MinHash minHash, int[] docSignatures){
+        final int[] sizes = setSizes;
+        if(bBitSignatures == null){
+            return (document, doc) -> {
+                minHash.getSignature(document, docSignatures, doc*signatureSize);
+                if(sizes != null) sizes[doc] = document.size();
+            };
+        }
+        final int[] scratchSignature = new int[signatureSize];
+        final byte[] scratchBand = new byte[r*4];
+        return (document, doc) -> {
+            minHash.getSignature(document, scratchSignature, 0);
+            if(sizes != null) sizes[doc] = document.size();
+            computeBandKeys(scratchSignature, 0, doc, scratchBand, bandKeys);
+            bBitSignatures.set(doc, scratchSignature, 0);
+        };
+    }
+
+    /**
+     * Gives the members of the exact duplicate groups the pairs of their representative, and adds the pairs
+     * inside every group with similarity 1.0. Does nothing if exact duplicates were not skipped.
+     * @param similarPairs the pairs between representatives
+     * @return the pairs between all documents
+     */
+    Set<SimilarPair> expandExactDuplicates(Set<SimilarPair> similarPairs){
+        if(representatives == null) return similarPairs;
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("expandDuplicates");
+        try {
+            return expandExactDuplicates(similarPairs, representatives);
+        } finally {
+            RunMetrics.endPhase(phase, metrics);
+        }
+    }
+
+    private Set<SimilarPair> expandExactDuplicates(Set<SimilarPair> similarPairs, int[] representatives){
+
+        //Group the duplicates by representative with a counting sort,
+        //the duplicates of rep are members[groupStart[rep]] ... members[groupStart[rep+1]-1]
+        final int[] groupStart = new int[maxFiles + 1];
+        for(int doc=0; doc<maxFiles; doc++){
+            if(representatives[doc] != doc) groupStart[representatives[doc] + 1]++;
+        }
+        for(int doc=0; doc<maxFiles; doc++){
+            groupStart[doc + 1] += groupStart[doc];
+        }
+        final int[] members = new int[groupStart[maxFiles]];
+        final int[] fill = Arrays.copyOf(groupStart, maxFiles);
+        for(int doc=0; doc<maxFiles; doc++){
+            if(representatives[doc] != doc){
+                members[fill[representatives[doc]]++] = doc;
+                if(documentClusters != null) documentClusters.union(doc, representatives[doc]);
+            }
+        }
+        this.representatives = null;
+        if(metrics != null) metrics.add("exactDuplicates", members.length);
+        if(members.length == 0 || (documentClusters != null && !materialisePairs)) return similarPairs;
+
+        Set<SimilarPair> expanded = new HashSet<SimilarPair>(similarPairs);
+        for(SimilarPair sp : similarPairs){
+            final int id1 = sp.getId1();
+            final int id2 = sp.getId2();
+            if(groupStart[id1] == groupStart[id1 + 1] && groupStart[id2] == groupStart[id2 + 1]) continue;
+            for(int i=groupStart[id1]-1; i<groupStart[id1 + 1]; i++){
+                final int x = i < groupStart[id1] ? id1 : members[i];
+                for(int j=groupStart[id2]-1; j<groupStart[id2 + 1]; j++){
+                    final int y = j < groupStart[id2] ? id2 : members[j];
+                    expanded.add(new SimilarPair(Math.min(x, y), Math.max(x, y), sp.getSimilarity()));
+                }
+            }
+        }
+        if(1.0 >= threshold){
+            for(int rep=0; rep<maxFiles; rep++){
+                for(int i=groupStart[rep]-1; i<groupStart[rep + 1]; i++){
+                    final int x = i < groupStart[rep] ? rep : members[i];
+                    for(int j=i+1; j<groupStart[rep + 1]; j++){
+                        //members come in increasing id order and after their representative
+                        expanded.add(new SimilarPair(x, members[j], 1.0));
+                    }
+                }
+            }
+        }
+        return expanded;
+    }
+
     /**
      * @param candidatePairs The pairs identified as candidates for being similar
+     * @param band the band the candidates come from
      * @param docSignatures an Array that has the MinHash signatures of the documents
      * @param threshold the threshold we need to have bigger than in order to classify 2 different tweets as similar
      * @param similarPairs the Set where similar pairs are saved
+     * @param bandEvent where the counts of this band are reported
      * @return returns the set with all pairs identified as having a Jaccard Similarity >= than the threshold
      */
     private Set<SimilarPair> getSimilarPairs(MyPrimitiveArrayList[] candidatePairs,
+                                             int band,
                                              int[] docSignatures,
                                              double threshold,
-                                             Set<SimilarPair> similarPairs){
+                                             Set<SimilarPair> similarPairs,
+                                             RunMetrics.BandEvent bandEvent){
+        long documents = 0;
+        long buckets = 0;
+        long largestBucket = 0;
+        final long[] counts = new long[3];
+
+        //the least number of equal rows a pair needs to have to get over the threshold
+        final int thresholdCommonRows = minimumCommonRows(threshold, signatureSize);
+        final PairSink collector = (id1, id2, similarity) -> collectPair(id1, id2, similarity, similarPairs);
+        //the collision counts are shared by all buckets, with them the band stays on this thread
+        final List<MyPrimitiveArrayList> verifyLater = verifyPool != null && bandCollisions == null
+                ? new ArrayList<MyPrimitiveArrayList>() : null;
 
         //for every cell in the bucket
         for (int cellIndex = 0; cellIndex < candidatePairs.length; cellIndex++) {
             //if there is no list there (null) or if the size is 1 continue the loop
             //We check for size==1 cause an element cannot be similar to another one if another one does not exist
             if (candidatePairs[cellIndex] == null || candidatePairs[cellIndex].size() == 1) {
+                if (candidatePairs[cellIndex] != null) {
+                    documents++;
+                    buckets++;
+                    largestBucket = Math.max(largestBucket, 1);
+                    if (metrics != null) metrics.bucket(1);
+                }
                 candidatePairs[cellIndex] = null; // free memory?
                 continue;
             }
+            documents += candidatePairs[cellIndex].size();
+            buckets++;
+            largestBucket = Math.max(largestBucket, candidatePairs[cellIndex].size());
+            if (metrics != null) metrics.bucket(candidatePairs[cellIndex].size());
+            if (setSizes != null) candidatePairs[cellIndex].sortBy(setSizes);
 
             //Do brute force for all elements in this list
-            for (int i = 0; i < candidatePairs[cellIndex].size(); i++) {
-                final int id1 = candidatePairs[cellIndex].get(i);
-                final int sigIndex1 = id1*signatureSize;
-                for (int j = (i + 1); j < candidatePairs[cellIndex].size(); j++) {
-
-                    final int id2 = candidatePairs[cellIndex].get(j);
-                    final double docSimilarity =  jaccardSimilarityFast(docSignatures, sigIndex1,
-                                                            id2*signatureSize, signatureSize);
-
-                    //If the Similarity is over the threshold!
-                    if (docSimilarity >= threshold) {
-                        similarPairs.add(new SimilarPair(id1, id2, docSimilarity));
-                    }
-                }
+            if (verifyLater != null) {
+                verifyLater.add(candidatePairs[cellIndex]);
+            } else {
+                verifyRows(candidatePairs[cellIndex], 0, candidatePairs[cellIndex].size(), band, docSignatures,
+                        threshold, thresholdCommonRows, collector, counts);
             }
             candidatePairs[cellIndex] = null; //free memory
         }
+        if (verifyLater != null) {
+            verifyInParallel(verifyLater, band, docSignatures, threshold, thresholdCommonRows, collector, counts);
+        }
+        //the passes of a partitioned band add up
+        bandEvent.documents += documents;
+        bandEvent.buckets += buckets;
+        bandEvent.largestBucket = Math.max(bandEvent.largestBucket, largestBucket);
+        bandEvent.pairsCompared += counts[COMPARED];
+        bandEvent.pairsAccepted += counts[ACCEPTED];
+        if (metrics != null && setSizes != null) metrics.add("pairsSizeFiltered", counts[SIZE_FILTERED]);
         return similarPairs;
     }
 
+    /*
+     * Where verifyRows puts the pairs it accepts, id1 < id2.
+     */
+    private interface PairSink {
+        void accept(int id1, int id2, double similarity);
+    }
+
+    //what verifyRows counts, in a long[3]
+    private static final int COMPARED = 0;
+    private static final int ACCEPTED = 1;
+    private static final int SIZE_FILTERED = 2;
+
+    /**
+     * Verifies the pairs (i, j), rowFrom <= i < rowTo, i < j, of the members of a bucket, the rows of its pairwise
+     * comparison matrix.
+     */
+    private void verifyRows(MyPrimitiveArrayList bucket, int rowFrom, int rowTo, int band, int[] docSignatures,
+                            double threshold, int thresholdCommonRows, PairSink sink, long[] counts){
+        //In an R-S join in id order the members from right on are the new documents
+        final int right = joinInputPath != null && setSizes == null ? firstAtLeast(bucket, rightSideStart) : -1;
+        for (int i = rowFrom; i < rowTo; i++) {
+            if (right >= 0 && i >= right) break;
+            final int id1 = bucket.get(i);
+            final int sigIndex1 = id1*signatureSize;
+            for (int j = Math.max(i + 1, right); j < bucket.size(); j++) {
+
+                final int id2 = bucket.get(j);
+
+                //Sorted by size, the members after this one are too big as well
+                if(setSizes != null && (double)setSizes[id1]/setSizes[id2] < this.threshold){
+                    counts[SIZE_FILTERED] += bucket.size() - j;
+                    break;
+                }
+
+                //In an R-S join in size order, both on the same side
+                if(joinInputPath != null && right < 0 && (id1 < rightSideStart) == (id2 < rightSideStart)){
+                    continue;
+                }
+
+                //Same cell of the buckets but a different band, not a real candidate
+                if(bandKeys != null && bandKeys[id1*b + band] != bandKeys[id2*b + band]){
+                    continue;
+                }
+                //Not enough bands yet, or verified in an earlier band already. Without band keys the rows of the band
+                //are compared, a pair that only shares the cell did not collide in this band
+                if(bandCollisions != null && ((bandKeys == null && !sameBand(docSignatures, id1, id2, band))
+                        || bandCollisions.addTo(LongIntHashMap.pairKey(id1, id2), 1) != minBandCollisions)){
+                    continue;
+                }
+                counts[COMPARED]++;
+                if(!estimateSimilarities){
+                    counts[ACCEPTED]++;
+                    sink.accept(Math.min(id1, id2), Math.max(id1, id2), Double.NaN);
+                    continue;
+                }
+
+                //In the top-k modes a full heap raises the threshold, the comparison can stop earlier then
+                final double requiredSimilarity = requiredSimilarity(id1, id2, threshold);
+                final int requiredCommonRows = requiredSimilarity == threshold ? thresholdCommonRows
+                        : minimumCommonRows(requiredSimilarity, signatureSize);
+                final double docSimilarity = bBitSignatures != null ? bBitSignatures.similarity(id1, id2)
+                        : jaccardSimilarityFast(docSignatures, sigIndex1, id2*signatureSize, signatureSize,
+                                                requiredCommonRows);
+
+                //If the Similarity is over the threshold!
+                if (docSimilarity >= requiredSimilarity) {
+                    counts[ACCEPTED]++;
+                    sink.accept(Math.min(id1, id2), Math.max(id1, id2), docSimilarity);
+                }
+            }
+        }
+    }
+
+    /*
+     * The index of the first member of a bucket in id order that is at least id, the size if there is none.
+     */
+    private static int firstAtLeast(MyPrimitiveArrayList bucket, int id){
+        int low = 0;
+        int high = bucket.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (bucket.get(mid) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Verifies the buckets of a band on the verifyPool and then collects the accepted pairs on this thread, in the
+     * order the serial loop finds them, so the heaps, clusters and checkpoints end up the same.
+     *
+     * The buckets are cut into stripes of rows with about the same number of pairs, so a giant bucket is shared by
+     * several workers, and the stripes go to the pool largest first, the small ones packed together. The workers
+     * only read the signatures and, in the top-k modes, the heaps as they were when the band started, which may
+     * let a few more pairs through to collectPair than the serial loop does but never fewer.
+     */
+    private void verifyInParallel(List<MyPrimitiveArrayList> buckets, int band, int[] docSignatures,
+                                  double threshold, int thresholdCommonRows, PairSink collector, long[] counts){
+        long total = 0;
+        for (MyPrimitiveArrayList bucket : buckets) {
+            total += (long) bucket.size() * (bucket.size() - 1) / 2;
+        }
+        final long stripePairs = Math.max(MIN_STRIPE_PAIRS, total / (verifyThreads * STRIPES_PER_THREAD));
+
+        //stripe s covers the rows stripeFrom[s] .. stripeTo[s]-1 of bucket stripeBucket[s]
+        final MyPrimitiveArrayList stripeBucket = new MyPrimitiveArrayList();
+        final MyPrimitiveArrayList stripeFrom = new MyPrimitiveArrayList();
+        final MyPrimitiveArrayList stripeTo = new MyPrimitiveArrayList();
+        final List<Long> costs = new ArrayList<Long>();
+        for (int k = 0; k < buckets.size(); k++) {
+            final int size = buckets.get(k).size();
+            long pairs = 0;
+            for (int row = 0, from = 0; row < size; row++) {
+                pairs += size - 1 - row;
+                if (pairs >= stripePairs || row == size - 1) {
+                    stripeBucket.add(k);
+                    stripeFrom.add(from);
+                    stripeTo.add(row + 1);
+                    costs.add(pairs);
+                    from = row + 1;
+                    pairs = 0;
+                }
+            }
+        }
+
+        //largest first: the cost, capped, in the high bits, the stripe in the low ones
+        final int stripes = stripeBucket.size();
+        final long[] byCost = new long[stripes];
+        for (int s = 0; s < stripes; s++) {
+            byCost[s] = ((long) (Integer.MAX_VALUE - (int) Math.min(costs.get(s), Integer.MAX_VALUE)) << 32) | s;
+        }
+        Arrays.sort(byCost);
+
+        final AcceptedPairs[] accepted = new AcceptedPairs[stripes];
+        final List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+        for (int first = 0; first < stripes; ) {
+            int last = first;
+            long cost = costs.get((int) byCost[first]);
+            while (last + 1 < stripes && cost < stripePairs) {
+                cost += costs.get((int) byCost[++last]);
+            }
+            final int from = first;
+            final int to = last + 1;
+            tasks.add(() -> {
+                final long[] taskCounts = new long[3];
+                for (int t = from; t < to; t++) {
+                    final int s = (int) byCost[t];
+                    final AcceptedPairs pairs = new AcceptedPairs();
+                    verifyRows(buckets.get(stripeBucket.get(s)), stripeFrom.get(s), stripeTo.get(s), band,
+                            docSignatures, threshold, thresholdCommonRows, pairs, taskCounts);
+                    accepted[s] = pairs;
+                }
+                return taskCounts;
+            });
+            first = to;
+        }
+        try {
+            for (Future<long[]> task : verifyPool.invokeAll(tasks)) {
+                final long[] taskCounts = task.get();
+                for (int c = 0; c < counts.length; c++) {
+                    counts[c] += taskCounts[c];
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Verifying band " + band + " failed", e);
+        }
+        for (AcceptedPairs pairs : accepted) {
+            pairs.drainTo(collector);
+        }
+    }
+
+    //a stripe has at least this many pairs, and a worker gets about STRIPES_PER_THREAD stripes' worth of a band
+    private static final long MIN_STRIPE_PAIRS = 4096;
+    private static final int STRIPES_PER_THREAD = 8;
+
+    /*
+     * The pairs a worker accepted from a stripe, until they are collected.
+     */
+    private static final class AcceptedPairs implements PairSink {
+        private int size;
+        private int[] ids = new int[8];
+        private double[] similarities = new double[4];
+
+        @Override
+        public void accept(int id1, int id2, double similarity) {
+            if (size == similarities.length) {
+                ids = Arrays.copyOf(ids, 4 * size);
+                similarities = Arrays.copyOf(similarities, 2 * size);
+            }
+            ids[2 * size] = id1;
+            ids[2 * size + 1] = id2;
+            similarities[size++] = similarity;
+        }
+
+        void drainTo(PairSink sink) {
+            for (int p = 0; p < size; p++) {
+                sink.accept(ids[2 * p], ids[2 * p + 1], similarities[p]);
+            }
+        }
+    }
+
+    /*
+     * Counts the collisions of a band that is in the checkpoint already, its pairs are not verified again.
+     */
+    private void countBandCollisions(MyPrimitiveArrayList[] candidatePairs, int band, int[] docSignatures){
+        for (MyPrimitiveArrayList cell : candidatePairs) {
+            if (cell == null) continue;
+            for (int i = 0; i < cell.size(); i++) {
+                final int id1 = cell.get(i);
+                for (int j = i + 1; j < cell.size(); j++) {
+                    final int id2 = cell.get(j);
+                    if (joinInputPath != null && (id1 < rightSideStart) == (id2 < rightSideStart)) continue;
+                    if (bandKeys != null ? bandKeys[id1*b + band] == bandKeys[id2*b + band]
+                            : sameBand(docSignatures, id1, id2, band)) {
+                        bandCollisions.addTo(LongIntHashMap.pairKey(id1, id2), 1);
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Whether two documents have the same r rows in a band, for when there are no band keys to compare.
+     */
+    private boolean sameBand(int[] docSignatures, int id1, int id2, int band){
+        final int start1 = id1*signatureSize + band*r;
+        final int start2 = id2*signatureSize + band*r;
+        for (int row = 0; row < r; row++) {
+            if (docSignatures[start1 + row] != docSignatures[start2 + row]) return false;
+        }
+        return true;
+    }
+
+    void startMetrics(){
+        metrics = new RunMetrics();
+        metrics.parameter("engine", getClass().getSimpleName());
+        metrics.parameter("inputPath", inputPath);
+        metrics.parameter("inputFiles", inputManifest().files.length);
+        metrics.parameter("maxFiles", maxFiles);
+        if(joinInputPath != null){
+            metrics.parameter("joinInputPath", joinInputPath);
+            metrics.parameter("rightSideStart", rightSideStart);
+        }
+        metrics.parameter("shingleLength", shingleLength);
+        metrics.parameter("nShingles", nShingles);
+        metrics.parameter("b", b);
+        metrics.parameter("r", r);
+        metrics.parameter("numberOfBuckets", sizeOfBuckets);
+        metrics.parameter("threshold", threshold);
+        metrics.parameter("topN", topN);
+        metrics.parameter("topK", topKPerDocument);
+        metrics.parameter("clusters", clusters);
+        metrics.parameter("skipExactDuplicates", skipExactDuplicates);
+        metrics.parameter("bBits", bBits);
+        metrics.parameter("weighted", weighted);
+        metrics.parameter("normalise", normalise);
+        metrics.parameter("wordShingles", wordShingles);
+        metrics.parameter("bandKeys", precomputeBandKeys);
+        metrics.parameter("minBandCollisions", minBandCollisions);
+        metrics.parameter("sizeFilter", sizeFilter);
+        metrics.parameter("bandPartitions", bandPartitions);
+        metrics.parameter("bandingMemory", bandingMemory);
+        metrics.parameter("verifyThreads", verifyThreads);
+        metrics.parameter("estimateSimilarities", estimateSimilarities);
+    }
+
+    /**
+     * Writes the JSON summary of the run, if metrics were collected.
+     * @param outputFile the path prefix of the output, the summary goes to outputFile + "SUMMARY.json"
+     */
+    void printMetrics(String outputFile){
+        if(metrics != null){
+            metrics.writeSummary(outputFile);
+        }
+    }
+
+    /**
+     * The similarity a pair has to reach in order to make it into the result. This is the threshold,
+     * unless a top-k heap is already full with pairs more similar than that.
+     */
+    private double requiredSimilarity(int id1, int id2, double threshold){
+        if(topPairs != null){
+            return Math.max(threshold, topPairs.minimumSimilarity());
+        }
+        if(topNeighbours != null){
+            return Math.max(threshold, topNeighbours.minimumSimilarity(id1, id2));
+        }
+        return threshold;
+    }
+
+    /**
+     * Adds a pair over the required similarity to the result of the current result mode.
+     */
+    private void collectPair(int id1, int id2, double similarity, Set<SimilarPair> similarPairs){
+        if(bandPairs != null){
+            bandPairs.add(id1, id2, similarity);
+        }
+        if(topPairs != null){
+            topPairs.offer(id1, id2, similarity);
+        }else if(topNeighbours != null){
+            topNeighbours.offer(id1, id2, similarity);
+        }else{
+            if(documentClusters != null){
+                documentClusters.union(id1, id2);
+                if(!materialisePairs) return;
+            }
+            similarPairs.add(new SimilarPair(id1, id2, similarity));
+        }
+    }
+
+    /**
+     * Keeps only the pairs of the current top-k mode, for pairs that were confirmed after banding.
+     */
+    Set<SimilarPair> keepTop(Set<SimilarPair> similarPairs){
+        if(topN <= 0 && topKPerDocument <= 0) return similarPairs;
+        final Set<SimilarPair> kept = new HashSet<SimilarPair>();
+        if(topN > 0){
+            final BoundedPairHeap heap = new BoundedPairHeap(topN);
+            for(SimilarPair sp : similarPairs) heap.offer(sp.getId1(), sp.getId2(), sp.getSimilarity());
+            heap.drainTo(kept);
+        }else{
+            final NeighbourHeaps heaps = new NeighbourHeaps(maxFiles, topKPerDocument);
+            for(SimilarPair sp : similarPairs) heaps.offer(sp.getId1(), sp.getId2(), sp.getSimilarity());
+            heaps.drainTo(kept);
+        }
+        return kept;
+    }
+
+    /**
+     * Whether the pairs found from the signatures are final. The 2 pass version checks them again,
+     * so it does its clustering only after the second pass.
+     */
+    boolean confirmsPairs(){
+        return true;
+    }
+
+    /**
+     * Prints the cluster id of every document, and the size of every cluster with more than one document
+     * from the biggest to the smallest.
+     * @param outputFile the path prefix of the files to which they will be printed
+     */
+    void printClusters(String outputFile){
+        if(documentClusters == null) return;
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("output");
+        final int[] clusterIds = documentClusters.clusterIds();
+        final int[] clusterSizes = documentClusters.clusterSizes(clusterIds);
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile + "CLUSTERS"))));
+            StringBuilder sb = new StringBuilder(24);
+            for(int doc=0; doc<clusterIds.length; doc++){
+                sb.append(doc).append(',').append(clusterIds[doc]);
+                bw.write(sb.toString());
+                bw.newLine();
+                sb.delete(0, sb.length());
+            }
+            bw.close();
+
+            List<Integer> ids = new ArrayList<Integer>();
+            for(int clusterId=0; clusterId<clusterSizes.length; clusterId++){
+                if(clusterSizes[clusterId] > 1) ids.add(clusterId);
+            }
+            Collections.sort(ids, (id1, id2) -> Integer.compare(clusterSizes[id2], clusterSizes[id1]));
+            bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile + "CLUSTERSIZES"))));
+            for(int clusterId : ids){
+                sb.append(clusterId).append(',').append(clusterSizes[clusterId]);
+                bw.write(sb.toString());
+                bw.newLine();
+                sb.delete(0, sb.length());
+            }
+            bw.close();
+        }catch(Exception e){
+            e.printStackTrace();
+        }
+        RunMetrics.endPhase(phase, metrics);
+    }
+
     /**
      * Prints pairs and their similarity.
      * @param similarItems the set of similar items to print
      * @param outputFile the path of the file to which they will be printed
      */
     void printPairs(Set<SimilarPair> similarItems, String outputFile){
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("output");
+        if(metrics != null) metrics.add("similarPairs", similarItems.size());
         outputFile = outputFile + "LSHS";
         try {
             File fout = new File(outputFile);
@@ -230,6 +1369,7 @@ public class LocalitySensitiveHashing {
         }catch(Exception e){
             e.printStackTrace();
         }
+        RunMetrics.endPhase(phase, metrics);
     }
 
     private static void integersToBytes(int[] sourceArray, int startPos, int length, byte[] targetArray) {
@@ -243,7 +1383,7 @@ public class LocalitySensitiveHashing {
         }
     }
 
-    private static double jaccardSimilarityFast(final int[] docSignatures,
+    static double jaccardSimilarityFast(final int[] docSignatures,
                                                 final int doc1Index, final int doc2Index, final int signatureSize){
         int common = 0;
         for(int i=0; i<signatureSize; i++){
@@ -254,6 +1394,34 @@ public class LocalitySensitiveHashing {
         return (double)common/signatureSize;
     }
 
+    /**
+     * Same as jaccardSimilarityFast but gives up as soon as the pair cannot reach minCommon equal rows anymore.
+     * @return the estimated similarity, or -1 if less than minCommon rows are equal
+     */
+    static double jaccardSimilarityFast(final int[] docSignatures, final int doc1Index, final int doc2Index,
+                                                final int signatureSize, final int minCommon){
+        final int allowedMisses = signatureSize - minCommon;
+        int misses = 0;
+        for(int i=0; i<signatureSize; i++){
+            if(docSignatures[doc1Index + i] != docSignatures[doc2Index + i] && ++misses > allowedMisses){
+                return -1;
+            }
+        }
+        return (double)(signatureSize - misses)/signatureSize;
+    }
+
+    /**
+     * The least number of equal rows c such that c/signatureSize >= similarity,
+     * computed the same way jaccardSimilarityFast divides to avoid rounding surprises.
+     */
+    static int minimumCommonRows(double similarity, int signatureSize){
+        if(similarity <= 0) return 0;
+        int common = (int)Math.min(signatureSize + 1, Math.ceil(similarity*signatureSize));
+        while(common > 0 && (double)(common - 1)/signatureSize >= similarity) common--;
+        while(common <= signatureSize && (double)common/signatureSize < similarity) common++;
+        return common;
+    }
+
     private void analyzeMemoryBucketsBands32Bit(MyPrimitiveArrayList[] candidatePairs){
         double memoryInBytes = 16;
         memoryInBytes += candidatePairs.length * 4;
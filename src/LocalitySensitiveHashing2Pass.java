@@ -1,11 +1,31 @@
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class LocalitySensitiveHashing2Pass extends LocalitySensitiveHashing{
 
     int batchSize = 475000;
 
-    final Shingler shingler = new Shingler(super.shingleLength, super.nShingles);
-    final TwitterReader reader = new TwitterReader(super.maxFiles, shingler, super.inputPath);
+    /*
+     * Confidence based acceptance. The number of equal rows of the signatures of a pair of similarity s is binomial
+     * with n = b*r and s, so the estimate says more the further it is from the threshold. With confidenceTolerance > 0
+     * a pair is accepted without the exact check when a pair right at the threshold gets as many equal rows with
+     * probability at most confidenceTolerance, and rejected when it gets as few with at most that probability. Only
+     * the pairs in between are read again. The first pass keeps every pair that is not rejected, so pairs estimated
+     * a bit under the threshold are checked too. Needs the estimated similarities of full signatures.
+     */
+    double confidenceTolerance = 0;
+    private byte[] decisions;
+    private static final byte CHECK = 0;
+    private static final byte ACCEPT = 1;
+    private static final byte REJECT = 2;
+
+    //made on the first batch, like the reader, once the mode of the shingles is known
+    Shingler shingler;
+    //opened on the first batch, when the input manifest is known
+    TwitterReader reader;
 
 
     public LocalitySensitiveHashing2Pass(int shingleLength, int nShingles, String inputPath, int b, int r,
@@ -16,73 +36,234 @@ public class LocalitySensitiveHashing2Pass extends LocalitySensitiveHashing{
     
     @Override
     public Set<SimilarPair> DoLSH() {
-        Set<SimilarPair> originalSimilarPairs =  super.DoLSH();
+        //Only the representatives of exact duplicate groups are checked, their members are added at the end
+        Set<SimilarPair> originalSimilarPairs =  super.findSimilarPairs();
+        //The clusters are made only of pairs that pass the exact check
+        documentClusters = clusters ? new DisjointSets(maxFiles) : null;
         //If they are 0 just end the program, nothing to do here
-        if(originalSimilarPairs.size() == 0) return originalSimilarPairs;
+        if(originalSimilarPairs.size() == 0) return expandExactDuplicates(originalSimilarPairs);
 
 
         //I want to re-read the files only once, so read the files and keep them in the memory
         List<SimilarPair> listOriginalSimilarPairs = new ArrayList<>(originalSimilarPairs);
         originalSimilarPairs = null;
+        //With a checkpoint the batches have to be the same in a resumed run, whatever order the set gives the pairs in
+        if(checkpoint != null){
+            Collections.sort(listOriginalSimilarPairs, (p1, p2) -> p1.getId1() != p2.getId1()
+                    ? Integer.compare(p1.getId1(), p2.getId1()) : Integer.compare(p1.getId2(), p2.getId2()));
+        }
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("secondPass");
         int batchCounter = 0;
+        int batch = 0;
 
         Set<SimilarPair> newSimilarPairs = new HashSet<SimilarPair>();
 
+        //The pairs the estimate is sure enough about are decided right away, the others are checked
+        int acceptedByEstimate = 0;
+        int rejectedByEstimate = 0;
+        if(usesConfidence()){
+            final List<SimilarPair> borderline = new ArrayList<>();
+            for(SimilarPair pair : listOriginalSimilarPairs){
+                final byte decision = decisions[(int) Math.round(pair.getSimilarity() * signatureSize)];
+                if(decision == ACCEPT){
+                    confirmPair(pair, pair.getSimilarity(), newSimilarPairs);
+                    acceptedByEstimate++;
+                }else if(decision == REJECT){
+                    rejectedByEstimate++;
+                }else{
+                    borderline.add(pair);
+                }
+            }
+            listOriginalSimilarPairs = borderline;
+        }
+
         while(batchCounter < listOriginalSimilarPairs.size()){
-            if(listOriginalSimilarPairs.size() - batchCounter > batchSize){
-                Set<Integer> uniqueIDs = getUniqueIds(listOriginalSimilarPairs, batchCounter, batchSize+batchCounter);
-                List<Integer> listUniqueIDs = new ArrayList<>(uniqueIDs);
-                Collections.sort(listUniqueIDs);
-                Map <Integer, Set<Integer>> map = readFilesByID(listUniqueIDs);
+            final int batchEnd = Math.min(batchCounter + batchSize, listOriginalSimilarPairs.size());
+            final String batchFile = "secondPass-" + batch;
 
-                for(int i=batchCounter; i<batchCounter+batchSize; i++){
-                    double similarity = jaccardSimilarity(map.get(listOriginalSimilarPairs.get(i).getId1()),
-                                                        map.get(listOriginalSimilarPairs.get(i).getId2()));
-                    if(similarity >= super.threshold){
-                        newSimilarPairs.add(listOriginalSimilarPairs.get(i));
-                    }
+            //the batch cursor: every batch that is done has its confirmed pairs in the checkpoint
+            if(checkpoint != null && checkpoint.has(batchFile)){
+                final Checkpoint.Pairs confirmed = checkpoint.readPairs(batchFile);
+                for(int i=0; i<confirmed.size; i++){
+                    confirmPair(new SimilarPair(confirmed.ids1[i], confirmed.ids2[i], confirmed.similarities[i]),
+                            confirmed.similarities[i], newSimilarPairs);
                 }
-
-                batchCounter+=batchSize;
+                if(metrics != null) metrics.add("batchesResumed", 1);
             }else{
-                Set<Integer> uniqueIDs = getUniqueIds(listOriginalSimilarPairs, batchCounter, listOriginalSimilarPairs.size());
+                final Checkpoint.Pairs confirmed = checkpoint != null ? new Checkpoint.Pairs() : null;
+                Set<Integer> uniqueIDs = getUniqueIds(listOriginalSimilarPairs, batchCounter, batchEnd);
                 List<Integer> listUniqueIDs = new ArrayList<>(uniqueIDs);
                 Collections.sort(listUniqueIDs);
                 Map <Integer, Set<Integer>> map = readFilesByID(listUniqueIDs);
 
-                for(int i=batchCounter; i<listOriginalSimilarPairs.size(); i++){
-                    double similarity = jaccardSimilarity(map.get(listOriginalSimilarPairs.get(i).getId1()),
-                            map.get(listOriginalSimilarPairs.get(i).getId2()));
+                for(int i=batchCounter; i<batchEnd; i++){
+                    final SimilarPair pair = listOriginalSimilarPairs.get(i);
+                    double similarity = jaccardSimilarity(map.get(pair.getId1()), map.get(pair.getId2()));
                     if(similarity >= super.threshold){
-                        newSimilarPairs.add(listOriginalSimilarPairs.get(i));
+                        confirmPair(pair, similarity, newSimilarPairs);
+                        if(confirmed != null) confirmed.add(pair.getId1(), pair.getId2(), pair.getSimilarity());
                     }
                 }
+                if(confirmed != null) checkpoint.writePairs(batchFile, confirmed);
+            }
 
-                batchCounter = listOriginalSimilarPairs.size();
+            batchCounter = batchEnd;
+            batch++;
+        }
+        RunMetrics.endPhase(phase, metrics);
+        if(metrics != null){
+            //pairs the signatures got wrong, out of all pairs they found that were checked
+            final int confirmed = documentClusters != null && !materialisePairs ? -1
+                    : newSimilarPairs.size() - acceptedByEstimate;
+            if(usesConfidence()){
+                metrics.add("secondPassAcceptedByEstimate", acceptedByEstimate);
+                metrics.add("secondPassRejectedByEstimate", rejectedByEstimate);
+            }
+            metrics.add("secondPassChecked", listOriginalSimilarPairs.size());
+            if(confirmed >= 0){
+                metrics.add("secondPassConfirmed", confirmed);
+                metrics.gauge("secondPassFalsePositiveRate",
+                        1 - (double)confirmed/Math.max(1, listOriginalSimilarPairs.size()));
             }
         }
-        return newSimilarPairs;
+        //the top-k heaps only see the pairs that passed, a pair rejected here does not take a place
+        return expandExactDuplicates(keepTop(newSimilarPairs));
+    }
+
+    @Override
+    String checkpointParameters() {
+        return super.checkpointParameters() + "batchSize=" + batchSize + "\n"
+                + "confidenceTolerance=" + confidenceTolerance + "\n";
+    }
+
+    /**
+     * With confidence based acceptance the first pass keeps the pairs that are not rejected right away.
+     */
+    @Override
+    double candidateThreshold() {
+        if(!usesConfidence()) return threshold;
+        int common = 0;
+        while(common < signatureSize && decisions[common] == REJECT) common++;
+        return (double)common/signatureSize;
+    }
+
+    private boolean usesConfidence() {
+        if(confidenceTolerance <= 0 || bBits > 0 || !estimateSimilarities) return false;
+        if(decisions == null) decisions = decisions(signatureSize, threshold, confidenceTolerance);
+        return true;
+    }
+
+    /**
+     * What the estimate of a pair with k of n equal rows says, for k = 0 .. n, with the binomial(n, threshold) tails:
+     * ACCEPT if P(X >= k) <= tolerance, REJECT if P(X <= k) <= tolerance, CHECK otherwise.
+     */
+    static byte[] decisions(int n, double threshold, double tolerance) {
+        if(tolerance >= 0.5) {
+            throw new IllegalArgumentException("confidenceTolerance must be under 0.5: " + tolerance);
+        }
+        final byte[] decisions = new byte[n + 1];
+        if(threshold <= 0 || threshold >= 1) return decisions;
+
+        //the probabilities of the binomial, in logs so they do not underflow for long signatures
+        final double[] p = new double[n + 1];
+        double logChoose = 0;
+        for(int k=0; k<=n; k++){
+            if(k > 0) logChoose += Math.log(n - k + 1) - Math.log(k);
+            p[k] = Math.exp(logChoose + k*Math.log(threshold) + (n - k)*Math.log1p(-threshold));
+        }
+        double below = 0;
+        for(int k=0; k<=n; k++){
+            below += p[k];
+            if(below <= tolerance) decisions[k] = REJECT;
+        }
+        double above = 0;
+        for(int k=n; k>=0; k--){
+            above += p[k];
+            if(above <= tolerance) decisions[k] = ACCEPT;
+        }
+        return decisions;
+    }
+
+    @Override
+    boolean confirmsPairs() {
+        return false;
+    }
+
+    private void confirmPair(SimilarPair pair, double similarity, Set<SimilarPair> newSimilarPairs){
+        //pairs that were not estimated in the first pass get their exact similarity
+        if(Double.isNaN(pair.getSimilarity())){
+            pair.setSimilarity(similarity);
+        }
+        if(documentClusters != null){
+            documentClusters.union(pair.getId1(), pair.getId2());
+            if(!materialisePairs) return;
+        }
+        newSimilarPairs.add(pair);
     }
 
     //Read and save in the memory only the IDs required for the second pass
     public Map<Integer, Set<Integer>> readFilesByID(List<Integer> listUniqueIDs){
+        if(shingler == null){
+            shingler = newShingler();
+        }
+        final InputManifest manifest = inputManifest();
+        if(manifest.files.length > 1 && readerThreads() > 1){
+            return readFilesByIDInParallel(listUniqueIDs, manifest);
+        }
+        if(reader == null){
+            reader = new TwitterReader(super.maxFiles, shingler, manifest);
+        }
 
         reader.reset();
 
         Map<Integer, Set<Integer>> map = new HashMap<Integer, Set<Integer>>();
-        int idCounter = 0;
         for(int i=0; i<listUniqueIDs.size(); i++){
             int uniqueID = listUniqueIDs.get(i);
-            while(uniqueID != idCounter){
-                idCounter++;
-                reader.skipNext();
-            }
+            //the files without any of the ids are not even opened
+            reader.skipTo(uniqueID);
             map.put(uniqueID, reader.next());
-            idCounter++;
         }
         return map;
     }
 
+    /*
+     * Same as readFilesByID, but every file with some of the ids is read by its own reader on a pool of threads.
+     */
+    private Map<Integer, Set<Integer>> readFilesByIDInParallel(List<Integer> listUniqueIDs, InputManifest manifest){
+        final ExecutorService readers = Executors.newFixedThreadPool(Math.min(readerThreads(), manifest.files.length));
+        try {
+            List<Future<Map<Integer, Set<Integer>>>> parts = new ArrayList<>();
+            int start = 0;
+            while(start < listUniqueIDs.size()){
+                //the ids are sorted, the ids of a file are next to each other
+                final int fileEnd = manifest.base[manifest.fileOf(listUniqueIDs.get(start)) + 1];
+                int end = start;
+                while(end < listUniqueIDs.size() && listUniqueIDs.get(end) < fileEnd) end++;
+                final List<Integer> ids = listUniqueIDs.subList(start, end);
+                parts.add(readers.submit(() -> {
+                    final TwitterReader fileReader = new TwitterReader(super.maxFiles, shingler, manifest);
+                    Map<Integer, Set<Integer>> part = new HashMap<Integer, Set<Integer>>();
+                    for(int id : ids){
+                        fileReader.skipTo(id);
+                        part.put(id, fileReader.next());
+                    }
+                    fileReader.close();
+                    return part;
+                }));
+                start = end;
+            }
+            Map<Integer, Set<Integer>> map = new HashMap<Integer, Set<Integer>>();
+            for(Future<Map<Integer, Set<Integer>>> part : parts){
+                map.putAll(part.get());
+            }
+            return map;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Reading the documents of the second pass failed", e);
+        } finally {
+            readers.shutdown();
+        }
+    }
+
     /*
      * After the first LSH the program will have  a few similar pairs, this method
      * will record and return all the IDs appearing in those pairs, so that perform a
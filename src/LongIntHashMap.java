@@ -0,0 +1,227 @@
+/**
+ * Open addressing hash map from primitive long keys to primitive int values.
+ *
+ * A HashMap<Long, Integer> costs an object per key and per value, which is too much when we keep
+ * millions of pair keys or document fingerprints around. Here the keys and values live in two
+ * parallel primitive arrays, collisions are resolved with linear probing and removal uses backward
+ * shift deletion, so there are no tombstones and lookups never degrade after many removes.
+ */
+final class LongIntHashMap {
+
+    /*
+     * The key 0 marks an empty slot in the keys array. A real key 0 is kept on the side.
+     */
+    private long[] keys;
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    private boolean hasZeroKey = false;
+    private int zeroKeyValue;
+
+    public LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        //room for expectedSize at a load factor under 0.5, so probing sequences start out very short; the table
+        //only doubles once it is 0.75 full (see allocate)
+        while (capacity < expectedSize * 2L && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        this.resizeAt = (capacity >>> 1) + (capacity >>> 2); //0.75
+    }
+
+    /**
+     * Murmur3 64 bit finalizer, spreads the bits of the key so that linear probing behaves
+     * also for keys like pairs of document ids that only differ in the low bits.
+     */
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private int slot(long key) {
+        return (int) mix(key) & mask;
+    }
+
+    /**
+     * @param key the key to look up
+     * @param defaultValue the value returned when the key is not in the map
+     * @return the value of the key, or defaultValue
+     */
+    public int get(long key, int defaultValue) {
+        if (key == 0) {
+            return hasZeroKey ? zeroKeyValue : defaultValue;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Associates value with key, replacing a previous value if there was one.
+     */
+    public void put(long key, int value) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroKeyValue = value;
+            return;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                values[index] = value;
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    /**
+     * Adds delta to the value of key, a missing key counts as 0.
+     * @return the new value of the key
+     */
+    public int addTo(long key, int delta) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                zeroKeyValue = 0;
+                size++;
+            }
+            return zeroKeyValue += delta;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                return values[index] += delta;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = delta;
+        if (++size >= resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return delta;
+    }
+
+    /**
+     * Removes key from the map if it is there.
+     */
+    public void remove(long key) {
+        if (key == 0) {
+            if (hasZeroKey) {
+                hasZeroKey = false;
+                size--;
+            }
+            return;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != 0) {
+            if (current == key) {
+                size--;
+                shiftBack(index);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    /*
+     * Backward shift deletion: after emptying a slot, move back every following entry of the same
+     * probe run that would otherwise become unreachable.
+     */
+    private void shiftBack(int gap) {
+        int index = gap;
+        while (true) {
+            index = (index + 1) & mask;
+            final long current = keys[index];
+            if (current == 0) {
+                break;
+            }
+            final int home = slot(current);
+            //distance from the home slot to index versus distance from the gap to index
+            if (((index - home) & mask) >= ((index - gap) & mask)) {
+                keys[gap] = current;
+                values[gap] = values[index];
+                gap = index;
+            }
+        }
+        keys[gap] = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] oldKeys = keys;
+        final int[] oldValues = values;
+        allocate(newCapacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            final long key = oldKeys[i];
+            if (key != 0) {
+                int index = slot(key);
+                while (keys[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Key of a pair of document ids, the smaller id goes to the high 32 bits.
+     */
+    static long pairKey(int id1, int id2) {
+        if (id1 > id2) {
+            final int temp = id1;
+            id1 = id2;
+            id2 = temp;
+        }
+        return (((long) id1) << 32) | (id2 & 0xffffffffL);
+    }
+}
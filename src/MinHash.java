@@ -15,10 +15,29 @@ final class MinHash {
     private final int N;
 
     /*
-     * Memoize the results of MinHash
+     * Memoize the results of MinHash, shingle-major: the values of all hash functions for one shingle are next to
+     * each other, value i of shingle j is memoizedMinHash[j >>> blockShift][(j & blockMask)*numOfHashFunctions + i].
+     * A document reads one run of numOfHashFunctions ints per shingle instead of one int out of every hash function's
+     * row, and the kernel takes the minimum with the signature a whole run at a time, see MinKernel.
+     * The table is split in blocks of a power of two shingles so no array gets over the maximum array size.
      */
 
     private final int[][] memoizedMinHash;
+    private final int blockShift;
+    private final int blockMask;
+
+    MinKernel kernel = DEFAULT_KERNEL;
+
+    /*
+     * The a and b of every hash function, kept for the rows over nShingles. Those are the extra copies of a shingle
+     * in a multiset (see Shingler), element k + (j-1)*nShingles is the j-th copy of shingle k. They are rare, so they
+     * are not memoized but hashed when they are met: (k, j) is mixed with a and b as the seed. Not with a*x+b, since
+     * a*(k + j*nShingles) + b is a*k + b modulo nShingles and all copies of a shingle would get the same row.
+     * The mixed value is still taken modulo p and then N, so a copy has the same distribution as a shingle's row.
+     */
+    private final int[] a;
+    private final int[] b;
+    private final int p;
 
     public MinHash(int numOfHashFunctions, int nShingles) {
         this.numOfHashFunctions = numOfHashFunctions;
@@ -57,12 +76,25 @@ final class MinHash {
             b[i] = r.nextInt(Integer.MAX_VALUE);
         }
 
-        this.memoizedMinHash = new int[numOfHashFunctions][nShingles];
+        this.a = a;
+        this.b = b;
+        this.p = p;
+        //at most 2^28 ints a block
+        this.blockShift = 31 - Integer.numberOfLeadingZeros(Math.max(1, (1 << 28) / numOfHashFunctions));
+        this.blockMask = (1 << blockShift) - 1;
+        final int blocks = (int) (((long) nShingles + blockMask) >>> blockShift);
+        this.memoizedMinHash = new int[blocks][];
+        for(int block=0; block<blocks; block++){
+            final int shingles = Math.min(blockMask + 1, nShingles - (block << blockShift));
+            this.memoizedMinHash[block] = new int[shingles * numOfHashFunctions];
+        }
 
-        for(int i=0; i<numOfHashFunctions; i++){
-            for(int j=0; j<nShingles; j++){
+        for(int j=0; j<nShingles; j++){
+            final int[] block = this.memoizedMinHash[j >>> blockShift];
+            final int start = (j & blockMask) * numOfHashFunctions;
+            for(int i=0; i<numOfHashFunctions; i++){
                 long temp = (((long) a[i]) * j) + b[i];
-                this.memoizedMinHash[i][j] = (int) (temp % p) % this.N;
+                block[start + i] = (int) (temp % p) % this.N;
             }
         }
     }
@@ -160,7 +192,7 @@ final class MinHash {
         if (it.hasNext()) {
             Integer hashedSingle = it.next();
             for (int i = 0; i < this.numOfHashFunctions; i++) {
-                signature[i] = this.memoizedMinHash[i][hashedSingle];
+                signature[i] = row(i, hashedSingle);
             }
         } else {
             //If the set is empty then all values should be infinite,
@@ -177,7 +209,7 @@ final class MinHash {
         while (it.hasNext()) {
             Integer hashedSingle = it.next();
             for (int i = 0; i < this.numOfHashFunctions; i++) {
-                signature[i] = Math.min(signature[i], this.memoizedMinHash[i][hashedSingle]);
+                signature[i] = Math.min(signature[i], row(i, hashedSingle));
             }
         }
 
@@ -272,7 +304,7 @@ final class MinHash {
         if (it.hasNext()) {
             Integer hashedSingle = it.next();
             for (int i = 0; i < this.numOfHashFunctions; i++) {
-                arrayToStoreSignature[i] = this.memoizedMinHash[i][hashedSingle];
+                arrayToStoreSignature[i] = row(i, hashedSingle);
             }
         } else {
             //If the set is empty then all values should be infinite,
@@ -289,7 +321,7 @@ final class MinHash {
         while (it.hasNext()) {
             Integer hashedSingle = it.next();
             for (int i = 0; i < this.numOfHashFunctions; i++) {
-                arrayToStoreSignature[i] = Math.min(arrayToStoreSignature[i], this.memoizedMinHash[i][hashedSingle]);
+                arrayToStoreSignature[i] = Math.min(arrayToStoreSignature[i], row(i, hashedSingle));
             }
         }
 
@@ -381,7 +413,7 @@ final class MinHash {
         if (it.hasNext()) {
             final Integer hashedSingle = it.next();
             for (int i = 0; i < this.numOfHashFunctions; i++) {
-                targetSaveArray[targetStartIndex + i] = this.memoizedMinHash[i][hashedSingle];
+                targetSaveArray[targetStartIndex + i] = row(i, hashedSingle);
             }
         } else {
             //If the set is empty then all values should be infinite,
@@ -397,12 +429,72 @@ final class MinHash {
         //Compute for all n-Shingles in set
         while (it.hasNext()) {
             final Integer hashedSingle = it.next();
-            for (int i = 0; i < this.numOfHashFunctions; i++) {
-                targetSaveArray[targetStartIndex + i] =
-                        Math.min(targetSaveArray[targetStartIndex + i], this.memoizedMinHash[i][hashedSingle]);
+            if (hashedSingle < this.N) {
+                kernel.min(targetSaveArray, targetStartIndex, this.memoizedMinHash[hashedSingle >>> blockShift],
+                        (hashedSingle & blockMask) * this.numOfHashFunctions, this.numOfHashFunctions);
+            } else {
+                for (int i = 0; i < this.numOfHashFunctions; i++) {
+                    targetSaveArray[targetStartIndex + i] =
+                            Math.min(targetSaveArray[targetStartIndex + i], extraCopyRow(i, hashedSingle));
+                }
             }
         }
 
     }
 
+    /**
+     * The value of hash function i for a row, memoized for the shingles and computed for their extra copies.
+     */
+    private int row(int i, int shingle) {
+        return shingle < this.N
+                ? this.memoizedMinHash[shingle >>> blockShift][(shingle & blockMask) * this.numOfHashFunctions + i]
+                : extraCopyRow(i, shingle);
+    }
+
+    private int extraCopyRow(int i, int shingle) {
+        final long copy = ((long) (shingle / this.N) << 32) | (shingle % this.N);
+        final long seed = ((long) a[i] << 32) | b[i];
+        return (int) ((MurmurHash.fmix64(MurmurHash.fmix64(copy) ^ seed) >>> 1) % this.p) % this.N;
+    }
+
+    /**
+     * Takes the minimum of length values of a signature and of a run of the memo table, into the signature.
+     */
+    interface MinKernel {
+        void min(int[] signature, int signatureStart, int[] memo, int memoStart, int length);
+    }
+
+    //a plain loop over two runs, which the JIT can vectorize on its own
+    static final MinKernel SCALAR_KERNEL = (signature, signatureStart, memo, memoStart, length) -> {
+        for (int i = 0; i < length; i++) {
+            signature[signatureStart + i] = Math.min(signature[signatureStart + i], memo[memoStart + i]);
+        }
+    };
+
+    /*
+     * The Vector API kernel is only there when the JVM runs with --add-modules jdk.incubator.vector, otherwise the
+     * scalar one is used. -Dlsh.minHashKernel=scalar or vector chooses one.
+     */
+    static final MinKernel DEFAULT_KERNEL = kernel(System.getProperty("lsh.minHashKernel", "auto"));
+
+    static boolean hasVectorKernel() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+
+    static MinKernel kernel(String name) {
+        switch (name) {
+            case "scalar":
+                return SCALAR_KERNEL;
+            case "vector":
+                if (!hasVectorKernel()) {
+                    throw new IllegalStateException("the vector kernel needs --add-modules jdk.incubator.vector");
+                }
+                return new VectorMinKernel();
+            case "auto":
+                return hasVectorKernel() ? new VectorMinKernel() : SCALAR_KERNEL;
+            default:
+                throw new IllegalArgumentException("Unknown MinHash kernel: " + name);
+        }
+    }
+
 }
@@ -32,6 +32,19 @@ public final class MurmurHash {
      * @return 32 bit hash of the given array
      */
     public static int hash32(final byte[] data, int length, int seed) {
+        return hash32(data, 0, length, seed);
+    }
+
+    /**
+     * Generates 32 bit hash from a part of a byte array, the same as hashing a copy of that part.
+     *
+     * @param data byte array with the bytes to hash
+     * @param offset index of the first byte to hash
+     * @param length number of bytes to hash
+     * @param seed initial seed value
+     * @return 32 bit hash of the given bytes
+     */
+    public static int hash32(final byte[] data, int offset, int length, int seed) {
         // 'm' and 'r' are mixing constants generated offline.
         // They're not really 'magic', they just happen to work well.
         final int m = 0x5bd1e995;
@@ -42,7 +55,7 @@ public final class MurmurHash {
         int length4 = length/4;
 
         for (int i=0; i<length4; i++) {
-            final int i4 = i*4;
+            final int i4 = offset + i*4;
             int k = (data[i4+0]&0xff) +((data[i4+1]&0xff)<<8)
                     +((data[i4+2]&0xff)<<16) +((data[i4+3]&0xff)<<24);
             k *= m;
@@ -53,10 +66,11 @@ public final class MurmurHash {
         }
 
         // Handle the last few bytes of the input array
+        final int tail = offset + (length&~3);
         switch (length%4) {
-            case 3: h ^= (data[(length&~3) +2]&0xff) << 16;
-            case 2: h ^= (data[(length&~3) +1]&0xff) << 8;
-            case 1: h ^= (data[length&~3]&0xff);
+            case 3: h ^= (data[tail +2]&0xff) << 16;
+            case 2: h ^= (data[tail +1]&0xff) << 8;
+            case 1: h ^= (data[tail]&0xff);
                 h *= m;
         }
 
@@ -235,4 +249,19 @@ public final class MurmurHash {
         return hash64(bytes, bytes.length, seed);
     }
 
+    /**
+     * The 64 bit finalizer of MurmurHash3 (fmix64), a bijection that spreads every bit of k over the whole result.
+     *
+     * @param k value to mix
+     * @return the mixed value
+     */
+    public static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
 }
@@ -16,11 +16,37 @@ public class MyLSHRunner2Pass {
 		int maxFiles = -1;
 		int shingleLength = -1;
 		int nShingles = -1;
+		double targetCollisionRate = 0.01;
+		boolean sketchShingles = false;
+		int sketchDocuments = 100000;
 		float threshold = -1;
 		int i = 0;
 		int b = 0;
 		int r = 0;
 		int numberOfBuckets = 0;
+		int topN = 0;
+		int topK = 0;
+		boolean clusters = false;
+		boolean pairs = true;
+		boolean skipExactDuplicates = false;
+		int bBits = 0;
+		boolean weighted = false;
+		String normalise = "";
+		boolean wordShingles = false;
+		boolean bandKeys = false;
+		int minBandCollisions = 1;
+		boolean sizeFilter = false;
+		int bandPartitions = 1;
+		long bandingMemoryMB = 0;
+		int verifyThreads = 1;
+		String joinInputPath = null;
+		double confidenceTolerance = 0;
+		boolean metrics = false;
+		int ingestThreads = 0;
+		String manifest = null;
+		int readerThreads = 0;
+		String checkpointDir = null;
+		boolean estimateSimilarities = true;
 		while (i < args.length && args[i].startsWith("-")) {
 			String arg = args[i];
 			if(arg.equals("-inputPath")) {
@@ -30,7 +56,13 @@ public class MyLSHRunner2Pass {
 			}else if(arg.equals("-shingleLength")) {
 				shingleLength = Integer.parseInt(args[i + 1]);
 			}else if(arg.equals("-nShingles")){
-				nShingles = Integer.parseInt(args[i+1]);
+				nShingles = args[i+1].equals("auto") ? 0 : Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-targetCollisionRate")){
+				targetCollisionRate = Double.parseDouble(args[i+1]);
+			}else if(arg.equals("-sketchShingles")){
+				sketchShingles = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-sketchDocuments")){
+				sketchDocuments = Integer.parseInt(args[i+1]);
 			}else if(arg.equals("-threshold")){
 				threshold = Float.parseFloat(args[i+1]);
 			}else if(arg.equals("-outputPath")) {
@@ -41,13 +73,90 @@ public class MyLSHRunner2Pass {
             	r = Integer.parseInt(args[i+1]);
 			}else if(arg.equals("-numberOfBuckets")){
 				numberOfBuckets = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-topN")){
+				topN = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-topK")){
+				topK = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-clusters")){
+				clusters = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-pairs")){
+				pairs = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-skipExactDuplicates")){
+				skipExactDuplicates = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-bBits")){
+				bBits = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-weighted")){
+				weighted = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-normalise")){
+				normalise = args[i+1];
+			}else if(arg.equals("-wordShingles")){
+				wordShingles = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-bandKeys")){
+				bandKeys = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-minBandCollisions")){
+				minBandCollisions = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-sizeFilter")){
+				sizeFilter = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-bandPartitions")){
+				bandPartitions = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-bandingMemoryMB")){
+				bandingMemoryMB = Long.parseLong(args[i+1]);
+			}else if(arg.equals("-verifyThreads")){
+				verifyThreads = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-joinInputPath")){
+				joinInputPath = args[i+1];
+			}else if(arg.equals("-confidenceTolerance")){
+				confidenceTolerance = Double.parseDouble(args[i+1]);
+			}else if(arg.equals("-metrics")){
+				metrics = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-ingestThreads")){
+				ingestThreads = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-manifest")){
+				manifest = args[i+1];
+			}else if(arg.equals("-readerThreads")){
+				readerThreads = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-checkpointDir")){
+				checkpointDir = args[i+1];
+			}else if(arg.equals("-estimateSimilarities")){
+				estimateSimilarities = Boolean.parseBoolean(args[i+1]);
 			}
 			i += 2;
 		}
 		LocalitySensitiveHashing2Pass lsh = new LocalitySensitiveHashing2Pass(shingleLength, nShingles,
                             inputPath, b, r, numberOfBuckets, maxFiles, threshold, outputPath);
+		lsh.topN = topN;
+		lsh.topKPerDocument = topK;
+		lsh.clusters = clusters;
+		lsh.materialisePairs = pairs;
+		lsh.skipExactDuplicates = skipExactDuplicates;
+		lsh.bBits = bBits;
+		lsh.weighted = weighted;
+		lsh.normalise = normalise;
+		lsh.wordShingles = wordShingles;
+		lsh.targetCollisionRate = targetCollisionRate;
+		lsh.sketchShingles = sketchShingles;
+		lsh.sketchDocuments = sketchDocuments;
+		lsh.precomputeBandKeys = bandKeys;
+		lsh.minBandCollisions = minBandCollisions;
+		lsh.sizeFilter = sizeFilter;
+		lsh.bandPartitions = bandPartitions;
+		lsh.bandingMemory = bandingMemoryMB * 1024 * 1024;
+		lsh.verifyThreads = verifyThreads;
+		lsh.joinInputPath = joinInputPath;
+		lsh.confidenceTolerance = confidenceTolerance;
+		lsh.collectMetrics = metrics;
+		lsh.ingestThreads = ingestThreads;
+		lsh.manifestPath = manifest;
+		lsh.readerThreads = readerThreads;
+		lsh.checkpointDir = checkpointDir;
+		lsh.estimateSimilarities = estimateSimilarities;
 		Set<SimilarPair> similarPairs = lsh.DoLSH();
-		lsh.printPairs(similarPairs, outputPath);
+		if(pairs) {
+			lsh.printPairs(similarPairs, outputPath);
+		}
+		lsh.printClusters(outputPath);
+		lsh.printMetrics(outputPath);
+		lsh.clearCheckpoint();
 	}
 
 }
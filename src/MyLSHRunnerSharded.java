@@ -0,0 +1,114 @@
+import java.util.*;
+
+/**
+ * Runs the LSH over several worker processes on this machine, see ShardedLocalitySensitiveHashing.
+ * Takes the same arguments as MyLSHRunner plus the number of workers and a directory for their files:
+ * 				java MyLSHRunnerSharded -workers 4 -workDir /tmp/lsh -threshold 0.8 -maxFiles 100000 -inputPath ../data/tweets -outputPath myoutput -shingleLength 5 -nShingles 1000000 -b 20 -r 5 -numberOfBuckets 1000000
+ *
+ * The workers are started with the same class and arguments plus -workerPhase and -workerId.
+ */
+
+public class MyLSHRunnerSharded {
+
+	public static void main(String[] args) throws Exception{
+		String inputPath = "";
+		String outputPath = "";
+		int maxFiles = -1;
+		int shingleLength = -1;
+		int nShingles = -1;
+		double targetCollisionRate = 0.01;
+		boolean sketchShingles = false;
+		int sketchDocuments = 100000;
+		float threshold = -1;
+		int i = 0;
+		int b = 0;
+		int r = 0;
+		int numberOfBuckets = 0;
+		boolean metrics = false;
+		boolean weighted = false;
+		String normalise = "";
+		boolean wordShingles = false;
+		int workers = Runtime.getRuntime().availableProcessors();
+		String workDir = null;
+		String workerHeap = null;
+		String workerPhase = null;
+		int workerId = -1;
+		String manifest = null;
+		while (i < args.length && args[i].startsWith("-")) {
+			String arg = args[i];
+			if(arg.equals("-inputPath")) {
+				inputPath = args[i + 1];
+			}else if(arg.equals("-maxFiles")){
+				maxFiles = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-shingleLength")) {
+				shingleLength = Integer.parseInt(args[i + 1]);
+			}else if(arg.equals("-nShingles")){
+				nShingles = args[i+1].equals("auto") ? 0 : Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-targetCollisionRate")){
+				targetCollisionRate = Double.parseDouble(args[i+1]);
+			}else if(arg.equals("-sketchShingles")){
+				sketchShingles = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-sketchDocuments")){
+				sketchDocuments = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-threshold")){
+				threshold = Float.parseFloat(args[i+1]);
+			}else if(arg.equals("-outputPath")) {
+				outputPath = args[i + 1];
+			}else if(arg.equals("-b")){
+				b = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-r")){
+				r = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-numberOfBuckets")){
+				numberOfBuckets = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-metrics")){
+				metrics = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-weighted")){
+				weighted = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-normalise")){
+				normalise = args[i+1];
+			}else if(arg.equals("-wordShingles")){
+				wordShingles = Boolean.parseBoolean(args[i+1]);
+			}else if(arg.equals("-workers")){
+				workers = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-workDir")){
+				workDir = args[i+1];
+			}else if(arg.equals("-workerHeap")){
+				workerHeap = args[i+1];
+			}else if(arg.equals("-workerPhase")){
+				workerPhase = args[i+1];
+			}else if(arg.equals("-workerId")){
+				workerId = Integer.parseInt(args[i+1]);
+			}else if(arg.equals("-manifest")){
+				manifest = args[i+1];
+			}
+			i += 2;
+		}
+		if(workDir == null){
+			workDir = outputPath + "shards";
+		}
+
+		ShardedLocalitySensitiveHashing lsh = new ShardedLocalitySensitiveHashing(shingleLength, nShingles,
+				inputPath, b, r, numberOfBuckets, maxFiles, threshold, outputPath, workers, workDir);
+		lsh.manifestPath = manifest;
+		lsh.weighted = weighted;
+		lsh.normalise = normalise;
+		lsh.wordShingles = wordShingles;
+		lsh.targetCollisionRate = targetCollisionRate;
+		lsh.sketchShingles = sketchShingles;
+		lsh.sketchDocuments = sketchDocuments;
+
+		//this is a worker process started by the coordinator
+		if(workerPhase != null){
+			lsh.runWorker(workerPhase, workerId);
+			return;
+		}
+
+		lsh.workerArgs = args;
+		lsh.workerHeap = workerHeap;
+		lsh.collectMetrics = metrics;
+		Set<SimilarPair> similarPairs = lsh.DoLSH();
+		lsh.printPairs(similarPairs, outputPath);
+		lsh.printMetrics(outputPath);
+	}
+
+}
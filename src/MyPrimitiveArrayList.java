@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 public class MyPrimitiveArrayList {
 
     private int[] array;
@@ -34,4 +36,32 @@ public class MyPrimitiveArrayList {
         return currentSize;
     }
 
+    /**
+     * Sorts the elements, which must be non negative, by keys[element] and then by element.
+     */
+    public void sortBy(int[] keys){
+        if(currentSize <= 16){
+            //insertion sort, most lists are tiny
+            for(int i=1; i<currentSize; i++){
+                final int element = array[i];
+                int j = i - 1;
+                while(j >= 0 && (keys[array[j]] > keys[element]
+                        || (keys[array[j]] == keys[element] && array[j] > element))){
+                    array[j + 1] = array[j];
+                    j--;
+                }
+                array[j + 1] = element;
+            }
+            return;
+        }
+        final long[] sorted = new long[currentSize];
+        for(int i=0; i<currentSize; i++){
+            sorted[i] = ((long) keys[array[i]] << 32) | array[i];
+        }
+        Arrays.sort(sorted);
+        for(int i=0; i<currentSize; i++){
+            array[i] = (int) sorted[i];
+        }
+    }
+
 }
@@ -0,0 +1,130 @@
+import java.util.Set;
+
+/**
+ * Keeps for every document its k most similar neighbours.
+ *
+ * All the heaps share two flat primitive arrays, the heap of document d lives in the cells
+ * [d*k, (d+1)*k). Every heap is a min-heap on the similarity, so the least similar kept neighbour of
+ * a document is at the start of its slice. k is expected to be small (10 or so), therefore checking if a
+ * neighbour is already kept is just a scan over the slice.
+ */
+final class NeighbourHeaps {
+
+    private final int k;
+    private final int[] neighbours;
+    private final double[] similarities;
+    private final int[] sizes;
+
+    public NeighbourHeaps(int numberOfDocuments, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
+        this.neighbours = new int[numberOfDocuments * k];
+        this.similarities = new double[numberOfDocuments * k];
+        this.sizes = new int[numberOfDocuments];
+    }
+
+    /**
+     * Offers the pair to the heaps of both documents.
+     * @return true if the pair is kept by at least one of the two documents
+     */
+    public boolean offer(int id1, int id2, double similarity) {
+        final boolean kept1 = offer(id1, id2, similarity, id1 * k);
+        final boolean kept2 = offer(id2, id1, similarity, id2 * k);
+        return kept1 || kept2;
+    }
+
+    /**
+     * The similarity a pair needs to have more than in order to be kept by at least one of the two documents,
+     * or Double.NEGATIVE_INFINITY if one of them has not found k neighbours yet.
+     */
+    public double minimumSimilarity(int id1, int id2) {
+        return Math.min(minimumSimilarity(id1), minimumSimilarity(id2));
+    }
+
+    private double minimumSimilarity(int doc) {
+        return sizes[doc] < k ? Double.NEGATIVE_INFINITY : similarities[doc * k];
+    }
+
+    private boolean offer(int doc, int neighbour, double similarity, int base) {
+        final int size = sizes[doc];
+        for (int i = base; i < base + size; i++) {
+            if (neighbours[i] == neighbour) {
+                return true; //seen in an earlier band
+            }
+        }
+        if (size < k) {
+            neighbours[base + size] = neighbour;
+            similarities[base + size] = similarity;
+            sizes[doc]++;
+            siftUp(base, size);
+            return true;
+        }
+        if (similarity <= similarities[base]) {
+            return false;
+        }
+        neighbours[base] = neighbour;
+        similarities[base] = similarity;
+        siftDown(base, k);
+        return true;
+    }
+
+    /**
+     * Adds every kept (document, neighbour) pair to target, the smaller id always goes first
+     * so a pair kept by both documents is added only once.
+     */
+    public void drainTo(Set<SimilarPair> target) {
+        for (int doc = 0; doc < sizes.length; doc++) {
+            final int base = doc * k;
+            for (int i = base; i < base + sizes[doc]; i++) {
+                final int neighbour = neighbours[i];
+                if (doc < neighbour) {
+                    target.add(new SimilarPair(doc, neighbour, similarities[i]));
+                } else {
+                    target.add(new SimilarPair(neighbour, doc, similarities[i]));
+                }
+            }
+        }
+    }
+
+    private void swap(int a, int b) {
+        final int neighbour = neighbours[a];
+        final double similarity = similarities[a];
+        neighbours[a] = neighbours[b];
+        similarities[a] = similarities[b];
+        neighbours[b] = neighbour;
+        similarities[b] = similarity;
+    }
+
+    private void siftUp(int base, int index) {
+        while (index > 0) {
+            final int parent = (index - 1) >>> 1;
+            if (similarities[base + parent] <= similarities[base + index]) {
+                return;
+            }
+            swap(base + parent, base + index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int base, int size) {
+        int index = 0;
+        while (true) {
+            final int left = 2 * index + 1;
+            if (left >= size) {
+                return;
+            }
+            int smallest = left;
+            final int right = left + 1;
+            if (right < size && similarities[base + right] < similarities[base + left]) {
+                smallest = right;
+            }
+            if (similarities[base + index] <= similarities[base + smallest]) {
+                return;
+            }
+            swap(base + index, base + smallest);
+            index = smallest;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the banding and verification of several (b, r, threshold) configurations on one signature matrix, to tune
+ * them without shingling and signing the documents again for every one.
+ *
+ * The hash functions of MinHash come from one seeded sequence, so the first b*r rows of a longer signature are
+ * exactly the signature of a run with that b and r. The signatures are computed once with the largest b*r, and every
+ * configuration runs on a copy of its first b*r rows. Its bands are hashed to band keys like with -bandKeys, and the
+ * band of r rows starting at row k*r is the same in every configuration with that r, so its keys are computed once
+ * and shared by all of them. A configuration finds the same pairs as a run of it alone with -bandKeys true.
+ *
+ * The table has a line per configuration: the candidates verified, the pairs found, the time of the banding and the
+ * verification, and the memory a run of it alone would need for its signatures, band keys and the buckets of a band.
+ */
+final class ParameterSweep {
+
+    static final class Configuration {
+        final int b;
+        final int r;
+        final double threshold;
+        long candidates;
+        long pairs;
+        double millis;
+        long memoryBytes;
+
+        Configuration(int b, int r, double threshold) {
+            if (b < 1 || r < 1) {
+                throw new IllegalArgumentException("b and r must be positive: " + b + "x" + r);
+            }
+            this.b = b;
+            this.r = r;
+            this.threshold = threshold;
+        }
+    }
+
+    private final LocalitySensitiveHashing base;
+    final List<Configuration> configurations;
+
+    /**
+     * @param base the run the signatures are computed with, its signature must have at least b*r rows for every
+     *             configuration, and its other settings are used for all of them
+     */
+    ParameterSweep(LocalitySensitiveHashing base, List<Configuration> configurations) {
+        this.base = base;
+        this.configurations = configurations;
+    }
+
+    /**
+     * Parses configurations like 20x5@0.6,10x10@0.8, b x r @ threshold.
+     */
+    static List<Configuration> parse(String configurations) {
+        final List<Configuration> parsed = new ArrayList<Configuration>();
+        for (String configuration : configurations.split(",")) {
+            final String[] parts = configuration.trim().split("[x@]");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Not a configuration bxr@threshold: " + configuration);
+            }
+            parsed.add(new Configuration(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                    Float.parseFloat(parts[2])));
+        }
+        return parsed;
+    }
+
+    /**
+     * The rows of the signature the configurations need.
+     */
+    static int signatureSize(List<Configuration> configurations) {
+        int size = 0;
+        for (Configuration configuration : configurations) {
+            size = Math.max(size, configuration.b * configuration.r);
+        }
+        return size;
+    }
+
+    void run() {
+        if (base.bBits > 0 || base.skipExactDuplicates || base.checkpointDir != null) {
+            throw new IllegalStateException("the sweep does not support bBits, skipExactDuplicates or checkpoints");
+        }
+        for (Configuration configuration : configurations) {
+            if (configuration.b * configuration.r > base.signatureSize) {
+                throw new IllegalArgumentException("b*r " + configuration.b * configuration.r
+                        + " is more than the signature size " + base.signatureSize);
+            }
+        }
+        final int[] signatures = base.computeSignatures();
+        final int[] setSizes = base.setSizes;
+        final int documents = base.maxFiles;
+        final int size = base.signatureSize;
+
+        //in order of r, the band keys of one r are dropped before the next
+        final List<Configuration> byRows = new ArrayList<Configuration>(configurations);
+        byRows.sort(Comparator.comparingInt(configuration -> configuration.r));
+        final Map<Integer, long[]> sharedKeys = new HashMap<Integer, long[]>();
+        int sharedRows = 0;
+        for (Configuration configuration : byRows) {
+            final int b = configuration.b;
+            final int r = configuration.r;
+            if (r != sharedRows) {
+                sharedKeys.clear();
+                sharedRows = r;
+            }
+            final long start = System.nanoTime();
+            final int rows = b * r;
+            final int[] prefix = new int[rows * documents];
+            for (int doc = 0; doc < documents; doc++) {
+                System.arraycopy(signatures, doc * size, prefix, doc * rows, rows);
+            }
+            final long[] bandKeys = new long[b * documents];
+            for (int band = 0; band < b; band++) {
+                final long[] keys = sharedKeys.computeIfAbsent(band, k -> bandKeys(signatures, size, documents, r, k));
+                for (int doc = 0; doc < documents; doc++) {
+                    bandKeys[doc * b + band] = keys[doc];
+                }
+            }
+
+            final LocalitySensitiveHashing lsh = new LocalitySensitiveHashing(base.shingleLength, base.nShingles,
+                    base.inputPath, b, r, base.sizeOfBuckets, documents, configuration.threshold, base.outputFile);
+            lsh.topN = base.topN;
+            lsh.topKPerDocument = base.topKPerDocument;
+            lsh.sizeFilter = base.sizeFilter;
+            lsh.setSizes = setSizes;
+            lsh.minBandCollisions = base.minBandCollisions;
+            lsh.bandPartitions = base.bandPartitions;
+            lsh.bandingMemory = base.bandingMemory;
+            lsh.verifyThreads = base.verifyThreads;
+            lsh.manifestPath = base.manifestPath;
+            lsh.joinInputPath = base.joinInputPath;
+            lsh.precomputeBandKeys = true;
+            lsh.bandKeys = bandKeys;
+            lsh.givenSignatures = prefix;
+            lsh.collectMetrics = true;
+            final Set<SimilarPair> pairs = lsh.DoLSH();
+
+            configuration.millis = (System.nanoTime() - start) / 1e6;
+            configuration.candidates = lsh.metrics.counterValue("pairsCompared");
+            configuration.pairs = pairs.size();
+            final double partitions = Math.max(1, lsh.metrics.gaugeValue("banding.partitions"));
+            configuration.memoryBytes = 4L * documents * rows + 8L * documents * b
+                    + (long) ((8.0 * base.sizeOfBuckets + 56.0 * documents) / partitions);
+            System.out.println(line(configuration));
+        }
+    }
+
+    /*
+     * The keys of one band of r rows of every document.
+     */
+    private static long[] bandKeys(int[] signatures, int size, int documents, int r, int band) {
+        final long[] keys = new long[documents];
+        final byte[] bandAsBytes = new byte[r * 4];
+        for (int doc = 0; doc < documents; doc++) {
+            keys[doc] = LocalitySensitiveHashing.bandKey(signatures, doc * size + band * r, r, bandAsBytes);
+        }
+        return keys;
+    }
+
+    private static final String HEADER = "b\tr\tthreshold\tcandidates\tpairs\tmillis\tmemoryMB";
+
+    private static String line(Configuration configuration) {
+        return String.format(Locale.ROOT, "%d\t%d\t%s\t%d\t%d\t%.1f\t%.1f", configuration.b, configuration.r,
+                (float) configuration.threshold, configuration.candidates, configuration.pairs, configuration.millis,
+                configuration.memoryBytes / (1024.0 * 1024.0));
+    }
+
+    /**
+     * Writes the table of the configurations, in the order they were given, to outputFile + "SWEEP".
+     */
+    void printTable(String outputFile) {
+        try (BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outputFile + "SWEEP")))) {
+            bw.write(HEADER);
+            bw.newLine();
+            for (Configuration configuration : configurations) {
+                bw.write(line(configuration));
+                bw.newLine();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
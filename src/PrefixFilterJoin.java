@@ -0,0 +1,451 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exact all-pairs similarity join over the shingle sets, PPJoin+ style. Every pair with a Jaccard similarity of at
+ * least the threshold is found, with its exact similarity, which at high thresholds is often faster than LSH and the
+ * second pass together.
+ *
+ * The shingles are renamed to their rank in the order of global frequency, rare first, and every set is sorted in that
+ * order. Two sets x and y, |y| <= |x|, of similarity t share a token in the first |x| - ceil(t|x|) + 1 tokens of x
+ * and in the first |y| - ceil(2t/(1+t)|y|) + 1 tokens of y, so only those prefixes are indexed and a set only meets
+ * the sets it shares a rare token with. The candidates then go through
+ *
+ *  - the length filter:     |y| >= t|x|,
+ *  - the positional filter: the tokens after the matching positions are not enough anymore for the overlap
+ *                           alpha = ceil(t/(1+t)(|x|+|y|)) the pair needs,
+ *  - the suffix filter:     a lower bound of the Hamming distance of the rest of both sets, from splitting them on
+ *                           the middle token of one of them, recursively,
+ *
+ * and the ones left are verified by merging the two sets. The sets are probed in order of size against the smaller
+ * ones before them only, so every pair is found once, on several threads that share one index of all prefixes.
+ * Only the default result mode and clusters are supported.
+ */
+final class PrefixFilterJoin extends LocalitySensitiveHashing {
+
+    //threads that shingle the documents and probe the index, 0 for one per core
+    int probeThreads = 0;
+
+    private static final int SUFFIX_FILTER_DEPTH = 2;
+    private static final int PRUNED = Integer.MIN_VALUE;
+    //sets a probe thread takes at a time, bigger sets come later and take longer
+    private static final int CHUNK = 256;
+    //slack in the filters so that rounding can only make them weaker, never drop a pair
+    private static final double EPSILON = 1e-9;
+
+    //the shingle sets as sorted token ranks, by document id
+    private int[][] sets;
+    //document ids in order of set size (then id), and the size of each
+    private int[] order;
+    private int[] orderSizes;
+    //for token w, the positions in the order of the sets with w in their index prefix are
+    //postingSets[postingStart[w]] ... postingSets[postingStart[w+1]-1], ascending, and postingPositions where in the set
+    private int[] postingStart;
+    private int[] postingSets;
+    private int[] postingPositions;
+
+    public PrefixFilterJoin(int shingleLength, int nShingles, String inputPath, int maxFiles, double threshold,
+                            String outputFile) {
+        super(shingleLength, nShingles, inputPath, 1, 1, 1, maxFiles, threshold, outputFile);
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("the prefix filter join needs a positive threshold: " + threshold);
+        }
+    }
+
+    @Override
+    public Set<SimilarPair> DoLSH() {
+        if (topN > 0 || topKPerDocument > 0 || skipExactDuplicates || bBits > 0 || precomputeBandKeys
+                || minBandCollisions > 1 || checkpointDir != null || joinInputPath != null) {
+            throw new IllegalStateException("the prefix filter join only supports the default mode and clusters");
+        }
+        if (collectMetrics) {
+            startMetrics();
+        }
+        sizeShingles();
+        documentClusters = clusters ? new DisjointSets(maxFiles) : null;
+
+        final int threads = probeThreads > 0 ? probeThreads : Runtime.getRuntime().availableProcessors();
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("join.read");
+            readSets(pool, threads);
+            RunMetrics.endPhase(phase, metrics);
+
+            phase = RunMetrics.beginPhase("join.index");
+            rankTokens(pool, threads);
+            buildIndex();
+            RunMetrics.endPhase(phase, metrics);
+
+            phase = RunMetrics.beginPhase("join.probe");
+            final AtomicInteger nextChunk = new AtomicInteger();
+            final List<Future<Probe>> probes = new ArrayList<Future<Probe>>();
+            for (int t = 0; t < threads; t++) {
+                probes.add(pool.submit(() -> {
+                    final Probe probe = new Probe(sets.length);
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) * CHUNK < order.length) {
+                        final int end = Math.min(order.length, (chunk + 1) * CHUNK);
+                        for (int x = chunk * CHUNK; x < end; x++) {
+                            probe.probe(x);
+                        }
+                    }
+                    return probe;
+                }));
+            }
+            final Set<SimilarPair> similarPairs = new HashSet<SimilarPair>();
+            long candidates = 0, positionFiltered = 0, suffixFiltered = 0, verified = 0;
+            for (Future<Probe> future : probes) {
+                final Probe probe = future.get();
+                for (SimilarPair pair : probe.pairs) {
+                    if (documentClusters != null) documentClusters.union(pair.getId1(), pair.getId2());
+                    if (materialisePairs) similarPairs.add(pair);
+                }
+                candidates += probe.candidates;
+                positionFiltered += probe.positionFiltered;
+                suffixFiltered += probe.suffixFiltered;
+                verified += probe.verified;
+            }
+            RunMetrics.endPhase(phase, metrics);
+            if (metrics != null) {
+                metrics.add("documents", sets.length);
+                metrics.add("joinCandidates", candidates);
+                metrics.add("joinPositionFiltered", positionFiltered);
+                metrics.add("joinSuffixFiltered", suffixFiltered);
+                metrics.add("pairsCompared", verified);
+            }
+            return similarPairs;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("The prefix filter join failed", e);
+        } finally {
+            pool.shutdown();
+            sets = null;
+            postingSets = null;
+            postingPositions = null;
+        }
+    }
+
+    /*
+     * Reads the documents and shingles them on the pool.
+     */
+    private void readSets(ExecutorService pool, int threads) throws InterruptedException, ExecutionException {
+        final Shingler shingler = newShingler();
+        final TwitterReader reader = new TwitterReader(maxFiles, shingler, inputManifest());
+        final List<String> texts = new ArrayList<String>();
+        while (reader.hasNext()) {
+            texts.add(reader.nextText());
+        }
+        reader.close();
+        sets = new int[texts.size()][];
+        inParallel(pool, threads, sets.length, doc -> {
+            final Set<Integer> shingles = shingler.shingle(texts.get(doc));
+            final int[] set = new int[shingles.size()];
+            int k = 0;
+            for (int shingle : shingles) {
+                set[k++] = shingle;
+            }
+            sets[doc] = set;
+        });
+    }
+
+    /*
+     * Renames every shingle to its rank in order of frequency, rare first, and sorts the sets in that order.
+     */
+    private void rankTokens(ExecutorService pool, int threads) throws InterruptedException, ExecutionException {
+        long total = 0;
+        int maxToken = -1;
+        for (int[] set : sets) {
+            total += set.length;
+            for (int token : set) {
+                maxToken = Math.max(maxToken, token);
+            }
+        }
+        if (total > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many shingles for the prefix filter join: " + total);
+        }
+
+        //the frequency in the high bits, the token (or its index in tokens) in the low ones
+        final long[] byFrequency;
+        final int[] tokens;
+        final int[] rank;
+        if (maxToken < 2 * total) {
+            //the shingles are below nShingles, bar a few weighted copies, so a table by shingle is small enough
+            tokens = null;
+            rank = new int[maxToken + 1];
+            for (int[] set : sets) {
+                for (int token : set) {
+                    rank[token]++;
+                }
+            }
+            int distinct = 0;
+            for (int frequency : rank) {
+                if (frequency > 0) distinct++;
+            }
+            byFrequency = new long[distinct];
+            for (int token = 0, d = 0; token <= maxToken; token++) {
+                if (rank[token] > 0) byFrequency[d++] = ((long) rank[token] << 32) | token;
+            }
+        } else {
+            final int[] all = new int[(int) total];
+            int filled = 0;
+            for (int[] set : sets) {
+                System.arraycopy(set, 0, all, filled, set.length);
+                filled += set.length;
+            }
+            Arrays.parallelSort(all);
+            int distinct = 0;
+            for (int i = 0; i < all.length; i++) {
+                if (i == 0 || all[i] != all[i - 1]) distinct++;
+            }
+            tokens = new int[distinct];
+            byFrequency = new long[distinct];
+            for (int i = 0, d = -1; i < all.length; i++) {
+                if (i == 0 || all[i] != all[i - 1]) {
+                    tokens[++d] = all[i];
+                    byFrequency[d] = d;
+                }
+                byFrequency[d] += 1L << 32;
+            }
+            rank = new int[distinct];
+        }
+        Arrays.parallelSort(byFrequency);
+        for (int r = 0; r < byFrequency.length; r++) {
+            rank[(int) byFrequency[r]] = r;
+        }
+
+        inParallel(pool, threads, sets.length, doc -> {
+            final int[] set = sets[doc];
+            for (int k = 0; k < set.length; k++) {
+                set[k] = rank[tokens == null ? set[k] : Arrays.binarySearch(tokens, set[k])];
+            }
+            Arrays.sort(set);
+        });
+        postingStart = new int[byFrequency.length + 1];
+    }
+
+    private void buildIndex() {
+        final long[] bySize = new long[sets.length];
+        for (int doc = 0; doc < sets.length; doc++) {
+            bySize[doc] = ((long) sets[doc].length << 32) | doc;
+        }
+        Arrays.parallelSort(bySize);
+        order = new int[sets.length];
+        orderSizes = new int[sets.length];
+        for (int x = 0; x < sets.length; x++) {
+            order[x] = (int) bySize[x];
+            orderSizes[x] = (int) (bySize[x] >>> 32);
+        }
+
+        //counting sort of the postings by token, they come in the order of the sets
+        for (int x = 0; x < order.length; x++) {
+            final int[] set = sets[order[x]];
+            for (int k = 0, prefix = indexPrefix(set.length); k < prefix; k++) {
+                postingStart[set[k] + 1]++;
+            }
+        }
+        for (int w = 0; w + 1 < postingStart.length; w++) {
+            postingStart[w + 1] += postingStart[w];
+        }
+        postingSets = new int[postingStart[postingStart.length - 1]];
+        postingPositions = new int[postingSets.length];
+        final int[] fill = Arrays.copyOf(postingStart, postingStart.length - 1);
+        for (int x = 0; x < order.length; x++) {
+            final int[] set = sets[order[x]];
+            for (int k = 0, prefix = indexPrefix(set.length); k < prefix; k++) {
+                final int p = fill[set[k]]++;
+                postingSets[p] = x;
+                postingPositions[p] = k;
+            }
+        }
+    }
+
+    private int probePrefix(int size) {
+        return Math.min(size, size - (int) Math.ceil(threshold * size - EPSILON) + 1);
+    }
+
+    private int indexPrefix(int size) {
+        return Math.min(size, size - (int) Math.ceil(2 * threshold / (1 + threshold) * size - EPSILON) + 1);
+    }
+
+    private int requiredOverlap(int sizeX, int sizeY) {
+        return (int) Math.ceil(threshold / (1 + threshold) * (sizeX + sizeY) - EPSILON);
+    }
+
+    /*
+     * The state of one probing thread: the overlap found so far with every set, PRUNED for the ones filtered out,
+     * and the sets that were met.
+     */
+    private final class Probe {
+        final int[] overlaps;
+        final int[] met;
+        final List<SimilarPair> pairs = new ArrayList<SimilarPair>();
+        long candidates;
+        long positionFiltered;
+        long suffixFiltered;
+        long verified;
+
+        Probe(int documents) {
+            overlaps = new int[documents];
+            met = new int[documents];
+        }
+
+        /*
+         * Finds the pairs of the set at position x of the order with the sets before it.
+         */
+        void probe(int x) {
+            final int[] setX = sets[order[x]];
+            final int sizeX = setX.length;
+            if (sizeX == 0) return;
+            //the length filter, the sets before first are too small
+            final int first = lowerBound(orderSizes, 0, x, (int) Math.ceil(threshold * sizeX - EPSILON));
+            int metCount = 0;
+
+            for (int i = 0, prefix = probePrefix(sizeX); i < prefix; i++) {
+                final int w = setX[i];
+                final int end = postingStart[w + 1];
+                for (int p = lowerBound(postingSets, postingStart[w], end, first); p < end; p++) {
+                    final int y = postingSets[p];
+                    if (y >= x) break;
+                    final int overlap = overlaps[y];
+                    if (overlap == PRUNED) continue;
+
+                    final int sizeY = orderSizes[y];
+                    final int j = postingPositions[p];
+                    final int alpha = requiredOverlap(sizeX, sizeY);
+                    if (overlap == 0) {
+                        met[metCount++] = y;
+                    }
+                    //the positional filter: this token and what is left after it
+                    if (overlap + 1 + Math.min(sizeX - i - 1, sizeY - j - 1) < alpha) {
+                        overlaps[y] = PRUNED;
+                        positionFiltered++;
+                        continue;
+                    }
+                    //the suffix filter, the first time the pair meets: nothing before i and j is common
+                    if (overlap == 0) {
+                        final int maxHamming = sizeX + sizeY - 2 * alpha - (i + j);
+                        if (suffixFilter(setX, i + 1, sizeX, sets[order[y]], j + 1, sizeY, maxHamming, 1) > maxHamming) {
+                            overlaps[y] = PRUNED;
+                            suffixFiltered++;
+                            continue;
+                        }
+                    }
+                    overlaps[y] = overlap + 1;
+                }
+            }
+
+            candidates += metCount;
+            final int idX = order[x];
+            for (int m = 0; m < metCount; m++) {
+                final int y = met[m];
+                if (overlaps[y] != PRUNED) {
+                    verified++;
+                    final int[] setY = sets[order[y]];
+                    final int common = overlap(setX, setY, requiredOverlap(sizeX, setY.length));
+                    if (common >= 0) {
+                        final double similarity = (double) common / (sizeX + setY.length - common);
+                        if (similarity >= threshold) {
+                            final int idY = order[y];
+                            pairs.add(new SimilarPair(Math.min(idX, idY), Math.max(idX, idY), similarity));
+                        }
+                    }
+                }
+                overlaps[y] = 0;
+            }
+        }
+    }
+
+    /**
+     * A lower bound of the Hamming distance (the size of the symmetric difference) of two sorted runs, exact up to
+     * the split depth. y is split on its middle token w and x on where w would be, the distance is the sum of the
+     * distances of the left parts and of the right parts, plus one if only y has w.
+     * @param maxHamming the bound that matters, the search stops as soon as it is over it
+     */
+    static int suffixFilter(int[] x, int xFrom, int xTo, int[] y, int yFrom, int yTo, int maxHamming, int depth) {
+        final int sizeX = xTo - xFrom;
+        final int sizeY = yTo - yFrom;
+        if (sizeX == 0 || sizeY == 0) return sizeX + sizeY;
+        if (depth > SUFFIX_FILTER_DEPTH) return Math.abs(sizeX - sizeY);
+
+        final int mid = yFrom + sizeY / 2;
+        final int w = y[mid];
+        final int p = lowerBound(x, xFrom, xTo, w);
+        final int diff = p < xTo && x[p] == w ? 0 : 1;
+        final int xRightFrom = p + 1 - diff;
+        final int rightDifference = Math.abs((xTo - xRightFrom) - (yTo - mid - 1));
+
+        int hamming = Math.abs((p - xFrom) - (mid - yFrom)) + rightDifference + diff;
+        if (hamming > maxHamming) return hamming;
+        final int left = suffixFilter(x, xFrom, p, y, yFrom, mid, maxHamming - rightDifference - diff, depth + 1);
+        hamming = left + rightDifference + diff;
+        if (hamming > maxHamming) return hamming;
+        final int right = suffixFilter(x, xRightFrom, xTo, y, mid + 1, yTo, maxHamming - left - diff, depth + 1);
+        return left + right + diff;
+    }
+
+    /**
+     * The number of common tokens of two sorted sets, or -1 as soon as it cannot reach required anymore.
+     */
+    static int overlap(int[] x, int[] y, int required) {
+        int i = 0;
+        int j = 0;
+        int common = 0;
+        while (i < x.length && j < y.length) {
+            if (common + Math.min(x.length - i, y.length - j) < required) return -1;
+            if (x[i] == y[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (x[i] < y[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return common >= required ? common : -1;
+    }
+
+    //the first index in from .. to-1 with a[index] >= key, to if there is none
+    private static int lowerBound(int[] a, int from, int to, int key) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (a[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private interface DocumentTask {
+        void run(int doc);
+    }
+
+    private static void inParallel(ExecutorService pool, int threads, int documents, DocumentTask task)
+            throws InterruptedException, ExecutionException {
+        final List<Future<?>> parts = new ArrayList<Future<?>>();
+        final int part = Math.max(1, (documents + threads - 1) / threads);
+        for (int from = 0; from < documents; from += part) {
+            final int start = from;
+            final int end = Math.min(documents, from + part);
+            parts.add(pool.submit(() -> {
+                for (int doc = start; doc < end; doc++) {
+                    task.run(doc);
+                }
+            }));
+        }
+        for (Future<?> future : parts) {
+            future.get();
+        }
+    }
+}
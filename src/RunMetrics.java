@@ -0,0 +1,259 @@
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects what happened during an LSH run: how long every phase and every band took, counters like the number of
+ * pairs compared and accepted, a histogram of the bucket sizes and the peak heap, and writes them as a JSON summary.
+ *
+ * The JFR events (lsh.Phase, lsh.Band) are committed whether metrics are on or not, they cost close to nothing when
+ * no recording is running. Everything else is only done when the LSH has a RunMetrics, which it only has when asked.
+ */
+final class RunMetrics {
+
+    @Name("lsh.Phase")
+    @Label("LSH Phase")
+    @Category("LSH")
+    static final class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+
+        //not recorded by JFR, only used for the summary
+        transient long startNanos;
+    }
+
+    @Name("lsh.Band")
+    @Label("LSH Band")
+    @Category("LSH")
+    static final class BandEvent extends Event {
+        @Label("Band")
+        int band;
+        @Label("Documents")
+        long documents;
+        @Label("Non Empty Buckets")
+        long buckets;
+        @Label("Largest Bucket")
+        long largestBucket;
+        @Label("Pairs Compared")
+        long pairsCompared;
+        @Label("Pairs Accepted")
+        long pairsAccepted;
+        @Label("Candidate Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long candidateNanos;
+        @Label("Verification Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long verificationNanos;
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Object> parameters = new LinkedHashMap<String, Object>();
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<String, Long>();
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+    private final Map<String, Double> gauges = new LinkedHashMap<String, Double>();
+    private final List<BandEvent> bands = new ArrayList<BandEvent>();
+
+    //bucketSizes[i] counts the buckets with 2^i <= size < 2^(i+1)
+    private final long[] bucketSizes = new long[32];
+
+    RunMetrics() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    static PhaseEvent beginPhase(String phase) {
+        final PhaseEvent event = new PhaseEvent();
+        event.phase = phase;
+        event.startNanos = System.nanoTime();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends a phase, metrics can be null.
+     */
+    static void endPhase(PhaseEvent event, RunMetrics metrics) {
+        event.commit();
+        if (metrics != null) {
+            metrics.addPhase(event.phase, System.nanoTime() - event.startNanos);
+        }
+    }
+
+    void addPhase(String phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    void parameter(String name, Object value) {
+        parameters.put(name, value);
+    }
+
+    void add(String counter, long delta) {
+        counters.merge(counter, delta, Long::sum);
+    }
+
+    void gauge(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    void band(BandEvent event) {
+        bands.add(event);
+        add("pairsCompared", event.pairsCompared);
+        add("pairsAccepted", event.pairsAccepted);
+    }
+
+    long counterValue(String counter) {
+        return counters.getOrDefault(counter, 0L);
+    }
+
+    double gaugeValue(String name) {
+        return gauges.getOrDefault(name, 0.0);
+    }
+
+    void bucket(int size) {
+        bucketSizes[31 - Integer.numberOfLeadingZeros(size)]++;
+    }
+
+    /**
+     * Sum of the peak usage of all heap pools since the run started.
+     */
+    static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Writes the summary of the run as JSON.
+     * @param outputFile the path prefix of the output, the summary goes to outputFile + "SUMMARY.json"
+     */
+    void writeSummary(String outputFile) {
+        final long pairsCompared = counters.getOrDefault("pairsCompared", 0L);
+        if (pairsCompared > 0) {
+            //candidates that turned out under the threshold
+            gauge("candidateFalsePositiveRate", 1 - (double) counters.getOrDefault("pairsAccepted", 0L) / pairsCompared);
+        }
+
+        final StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\n");
+        sb.append("  \"totalMillis\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+        sb.append("  \"peakHeapBytes\": ").append(peakHeapBytes()).append(",\n");
+
+        sb.append("  \"parameters\": {");
+        appendEntries(sb, parameters);
+        sb.append("},\n");
+
+        sb.append("  \"phasesMillis\": {");
+        final Map<String, Object> phases = new LinkedHashMap<String, Object>();
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            phases.put(phase.getKey(), millis(phase.getValue()));
+        }
+        appendEntries(sb, phases);
+        sb.append("},\n");
+
+        sb.append("  \"counters\": {");
+        appendEntries(sb, new LinkedHashMap<String, Object>(counters));
+        sb.append("},\n");
+
+        sb.append("  \"gauges\": {");
+        appendEntries(sb, new LinkedHashMap<String, Object>(gauges));
+        sb.append("},\n");
+
+        sb.append("  \"bucketSizeHistogram\": [");
+        boolean first = true;
+        for (int i = 0; i < bucketSizes.length; i++) {
+            if (bucketSizes[i] == 0) continue;
+            sb.append(first ? "\n" : ",\n");
+            sb.append("    {\"from\": ").append(1L << i).append(", \"to\": ").append((1L << (i + 1)) - 1)
+                    .append(", \"buckets\": ").append(bucketSizes[i]).append('}');
+            first = false;
+        }
+        sb.append(first ? "],\n" : "\n  ],\n");
+
+        sb.append("  \"bands\": [");
+        for (int i = 0; i < bands.size(); i++) {
+            final BandEvent band = bands.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"band\": ").append(band.band)
+                    .append(", \"documents\": ").append(band.documents)
+                    .append(", \"buckets\": ").append(band.buckets)
+                    .append(", \"largestBucket\": ").append(band.largestBucket)
+                    .append(", \"pairsCompared\": ").append(band.pairsCompared)
+                    .append(", \"pairsAccepted\": ").append(band.pairsAccepted)
+                    .append(", \"candidateMillis\": ").append(millis(band.candidateNanos))
+                    .append(", \"verificationMillis\": ").append(millis(band.verificationNanos))
+                    .append('}');
+        }
+        sb.append(bands.isEmpty() ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+
+        try {
+            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(new File(outputFile + "SUMMARY.json"))));
+            bw.write(sb.toString());
+            bw.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e3) / 1e3;
+    }
+
+    private static void appendEntries(StringBuilder sb, Map<String, Object> entries) {
+        boolean first = true;
+        for (Map.Entry<String, Object> entry : entries.entrySet()) {
+            sb.append(first ? "\n" : ",\n");
+            sb.append("    \"").append(escape(entry.getKey())).append("\": ");
+            final Object value = entry.getValue();
+            if (value instanceof Number && !(value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))) {
+                sb.append(value);
+            } else if (value instanceof Boolean) {
+                sb.append(value);
+            } else if (value == null || value instanceof Double) {
+                sb.append("null");
+            } else {
+                sb.append('"').append(escape(value.toString())).append('"');
+            }
+            first = false;
+        }
+        if (!first) {
+            sb.append("\n  ");
+        }
+    }
+
+    private static String escape(String text) {
+        final StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
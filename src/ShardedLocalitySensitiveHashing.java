@@ -0,0 +1,371 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * LSH over several worker processes, for corpora that do not fit in one JVM.
+ *
+ * The documents are split by id range over the workers. Everything happens in two phases, each one a process per
+ * worker started by the coordinator (the JVM that calls DoLSH):
+ *
+ * map:    worker w computes the signatures of its documents and writes them to signatures-w.bin. Then for every band
+ *         and document it writes the record (band, cell, doc) to shuffle-w-o.bin, where cell is the cell of the
+ *         buckets the band hashes to and o = hash(band, cell) mod workers is the owner of that cell.
+ * reduce: worker o reads all shuffle files addressed to it. Its cells are complete, so it groups the documents
+ *         of every cell of every band, compares them with the signatures of all shards (memory mapped, only the
+ *         pages needed are read) and writes the pairs over the threshold to pairs-o.bin.
+ *
+ * The coordinator then merges the pair files. Cells, signatures and similarities are computed exactly like
+ * LocalitySensitiveHashing does, so the pairs are the same as the single process ones.
+ * All files go to workDir, which must be visible to all workers (on one machine: any local directory).
+ */
+public class ShardedLocalitySensitiveHashing extends LocalitySensitiveHashing {
+
+    final int workers;
+    final String workDir;
+
+    //the arguments the workers are started with, they must describe the same run as this one
+    String[] workerArgs = new String[0];
+    String workerMainClass = "MyLSHRunnerSharded";
+    String workerHeap = null;
+
+    public ShardedLocalitySensitiveHashing(int shingleLength, int nShingles, String inputPath, int b, int r,
+                                           int sizeOfBuckets, int maxFiles, double threshold, String outputFile,
+                                           int workers, String workDir) {
+        super(shingleLength, nShingles, inputPath, b, r, sizeOfBuckets, maxFiles, threshold, outputFile);
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be positive: " + workers);
+        }
+        this.workers = workers;
+        this.workDir = workDir;
+    }
+
+    @Override
+    public Set<SimilarPair> DoLSH() {
+        if (topN > 0 || topKPerDocument > 0 || clusters || skipExactDuplicates || bBits > 0 || precomputeBandKeys
+                || !estimateSimilarities || minBandCollisions > 1 || sizeFilter || joinInputPath != null) {
+            throw new IllegalStateException("the sharded LSH only supports the default mode");
+        }
+        if (collectMetrics) {
+            startMetrics();
+            metrics.parameter("workers", workers);
+        }
+        sizeShingles();
+        new File(workDir).mkdirs();
+        //the workers all use the manifest written here, so they agree on the ids
+        inputManifest();
+
+        runWorkers("map");
+        runWorkers("reduce");
+
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("shard.merge");
+        final Set<SimilarPair> similarPairs = new HashSet<SimilarPair>();
+        for (int w = 0; w < workers; w++) {
+            final File pairs = file("pairs", w);
+            try (DataInputStream in = input(pairs)) {
+                while (true) {
+                    final int id1;
+                    try {
+                        id1 = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    similarPairs.add(new SimilarPair(id1, in.readInt(), in.readDouble()));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            pairs.delete();
+            file("signatures", w).delete();
+        }
+        RunMetrics.endPhase(phase, metrics);
+        return similarPairs;
+    }
+
+    /*
+     * Starts one process per worker for the phase and waits for all of them.
+     */
+    private void runWorkers(String workerPhase) {
+        final RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("shard." + workerPhase);
+        final List<Process> processes = new ArrayList<Process>();
+        try {
+            for (int w = 0; w < workers; w++) {
+                final List<String> command = new ArrayList<String>();
+                command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+                if (workerHeap != null) {
+                    command.add("-Xmx" + workerHeap);
+                }
+                if (MinHash.hasVectorKernel()) {
+                    //the workers get the vector kernel too
+                    command.add("--add-modules");
+                    command.add("jdk.incubator.vector");
+                }
+                command.add("-cp");
+                command.add(System.getProperty("java.class.path"));
+                command.add(workerMainClass);
+                command.addAll(Arrays.asList(workerArgs));
+                //nShingles may come from the sketch, the workers must not run it again
+                command.add("-nShingles");
+                command.add(Integer.toString(nShingles));
+                command.add("-workerPhase");
+                command.add(workerPhase);
+                command.add("-workerId");
+                command.add(Integer.toString(w));
+                processes.add(new ProcessBuilder(command).inheritIO().start());
+            }
+            for (int w = 0; w < workers; w++) {
+                final int exitCode = processes.get(w).waitFor();
+                if (exitCode != 0) {
+                    throw new IllegalStateException("worker " + w + " failed in the " + workerPhase
+                            + " phase with exit code " + exitCode);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the workers", e);
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+        }
+        RunMetrics.endPhase(phase, metrics);
+    }
+
+    /**
+     * Runs the part of a phase of one worker, this is what the worker processes call.
+     */
+    void runWorker(String workerPhase, int worker) {
+        //fits maxFiles to the input like the coordinator did, the shards depend on it
+        inputManifest();
+        try {
+            if (workerPhase.equals("map")) {
+                mapShard(worker);
+            } else if (workerPhase.equals("reduce")) {
+                reduceShard(worker);
+            } else {
+                throw new IllegalArgumentException("unknown worker phase: " + workerPhase);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    int shardStart(int worker) {
+        return (int) ((long) maxFiles * worker / workers);
+    }
+
+    int ownerOf(int band, int cell) {
+        long key = ((long) band << 32) | cell;
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) Long.remainderUnsigned(key, workers);
+    }
+
+    private void mapShard(int worker) throws IOException {
+        final int start = shardStart(worker);
+        final int end = shardStart(worker + 1);
+
+        /*
+         * TwitterReader.hasNext stops one document before maxFiles, the single process LSH leaves the last
+         * signature empty (all 0) and still bands it. Do exactly the same here.
+         */
+        final int readable = Math.min(maxFiles - 1, inputManifest().documents());
+
+        final Shingler shingler = newShingler();
+        final TwitterReader reader = new TwitterReader(maxFiles, shingler, inputManifest());
+        reader.skipTo(Math.min(start, readable));
+        final MinHash minHash = new MinHash(signatureSize, nShingles);
+        final int[] signatures = new int[(end - start) * signatureSize];
+        for (int doc = start; doc < Math.min(end, readable); doc++) {
+            minHash.getSignature(shingler.shingle(reader.nextText()), signatures, (doc - start) * signatureSize);
+        }
+
+        try (DataOutputStream out = output(file("signatures", worker))) {
+            for (int value : signatures) {
+                out.writeInt(value);
+            }
+        }
+
+        //The records are written band after band, the owner reads them back the same way
+        final DataOutputStream[] shuffle = new DataOutputStream[workers];
+        for (int owner = 0; owner < workers; owner++) {
+            shuffle[owner] = output(file("shuffle-" + worker, owner));
+        }
+        final byte[] bandAsBytes = new byte[r * 4];
+        for (int band = 0; band < b; band++) {
+            for (int doc = start; doc < end; doc++) {
+                final int cell = bandBucket(signatures, (doc - start) * signatureSize, band, bandAsBytes);
+                final DataOutputStream out = shuffle[ownerOf(band, cell)];
+                out.writeInt(band);
+                out.writeInt(cell);
+                out.writeInt(doc);
+            }
+        }
+        for (DataOutputStream out : shuffle) {
+            out.close();
+        }
+    }
+
+    private void reduceShard(int owner) throws IOException {
+        final SignatureStore signatures = new SignatureStore();
+        final int minCommon = minimumCommonRows(threshold, signatureSize);
+
+        final DataInputStream[] shuffle = new DataInputStream[workers];
+        //the next record of every shuffle file, band -1 when the file is done
+        final int[][] next = new int[workers][3];
+        for (int from = 0; from < workers; from++) {
+            shuffle[from] = input(file("shuffle-" + from, owner));
+            readRecord(shuffle[from], next[from]);
+        }
+
+        //pairs found in an earlier band of this owner
+        final LongIntHashMap found = new LongIntHashMap(1024);
+        long[] cellsAndDocs = new long[1024];
+
+        try (DataOutputStream out = output(file("pairs", owner))) {
+            for (int band = 0; band < b; band++) {
+                //all (cell, doc) of this band, sorted by cell and then by doc
+                int size = 0;
+                for (int from = 0; from < workers; from++) {
+                    while (next[from][0] == band) {
+                        if (size == cellsAndDocs.length) {
+                            cellsAndDocs = Arrays.copyOf(cellsAndDocs, size + (size >> 1));
+                        }
+                        cellsAndDocs[size++] = ((long) next[from][1] << 32) | next[from][2];
+                        readRecord(shuffle[from], next[from]);
+                    }
+                }
+                Arrays.sort(cellsAndDocs, 0, size);
+
+                int groupStart = 0;
+                while (groupStart < size) {
+                    final long cell = cellsAndDocs[groupStart] >>> 32;
+                    int groupEnd = groupStart + 1;
+                    while (groupEnd < size && cellsAndDocs[groupEnd] >>> 32 == cell) {
+                        groupEnd++;
+                    }
+                    for (int i = groupStart; i < groupEnd; i++) {
+                        final int id1 = (int) cellsAndDocs[i];
+                        for (int j = i + 1; j < groupEnd; j++) {
+                            final int id2 = (int) cellsAndDocs[j];
+                            final long key = LongIntHashMap.pairKey(id1, id2);
+                            if (found.containsKey(key)) {
+                                continue;
+                            }
+                            final int common = signatures.commonRows(id1, id2);
+                            if (common >= minCommon) {
+                                found.put(key, 1);
+                                out.writeInt(id1);
+                                out.writeInt(id2);
+                                out.writeDouble((double) common / signatureSize);
+                            }
+                        }
+                    }
+                    groupStart = groupEnd;
+                }
+            }
+        }
+        for (int from = 0; from < workers; from++) {
+            shuffle[from].close();
+            file("shuffle-" + from, owner).delete();
+        }
+    }
+
+    private static void readRecord(DataInputStream in, int[] record) throws IOException {
+        try {
+            record[0] = in.readInt();
+            record[1] = in.readInt();
+            record[2] = in.readInt();
+        } catch (EOFException e) {
+            record[0] = -1;
+        }
+    }
+
+    /*
+     * The signatures of all shards, memory mapped. A mapping is at most 2GB, so every shard file is
+     * mapped in segments of whole signatures.
+     */
+    private final class SignatureStore {
+        private final IntBuffer[][] segments = new IntBuffer[workers][];
+        private final int[] starts = new int[workers + 1];
+        private final int docsPerSegment = Math.max(1, (Integer.MAX_VALUE / 4) / signatureSize);
+
+        SignatureStore() throws IOException {
+            for (int w = 0; w <= workers; w++) {
+                starts[w] = shardStart(w);
+            }
+            for (int w = 0; w < workers; w++) {
+                final int docs = starts[w + 1] - starts[w];
+                segments[w] = new IntBuffer[(docs + docsPerSegment - 1) / docsPerSegment];
+                try (RandomAccessFile file = new RandomAccessFile(file("signatures", w), "r");
+                     FileChannel channel = file.getChannel()) {
+                    for (int s = 0; s < segments[w].length; s++) {
+                        final long position = (long) s * docsPerSegment * signatureSize * 4;
+                        final long length = (long) Math.min(docsPerSegment, docs - s * docsPerSegment) * signatureSize * 4;
+                        segments[w][s] = channel.map(FileChannel.MapMode.READ_ONLY, position, length).asIntBuffer();
+                    }
+                }
+            }
+        }
+
+        int commonRows(int doc1, int doc2) {
+            final int w1 = shardOf(doc1);
+            final int w2 = shardOf(doc2);
+            final int local1 = doc1 - starts[w1];
+            final int local2 = doc2 - starts[w2];
+            final IntBuffer segment1 = segments[w1][local1 / docsPerSegment];
+            final IntBuffer segment2 = segments[w2][local2 / docsPerSegment];
+            final int index1 = (local1 % docsPerSegment) * signatureSize;
+            final int index2 = (local2 % docsPerSegment) * signatureSize;
+            int common = 0;
+            for (int i = 0; i < signatureSize; i++) {
+                if (segment1.get(index1 + i) == segment2.get(index2 + i)) {
+                    common++;
+                }
+            }
+            return common;
+        }
+
+        private int shardOf(int doc) {
+            int w = Arrays.binarySearch(starts, doc);
+            if (w < 0) {
+                return -w - 2;
+            }
+            //empty shards share their start with the next one
+            while (starts[w + 1] == doc) {
+                w++;
+            }
+            return w;
+        }
+    }
+
+    private File file(String name, int worker) {
+        return new File(workDir, name + "-" + worker + ".bin");
+    }
+
+    private static DataOutputStream output(File file) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+    }
+
+    private static DataInputStream input(File file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+    }
+}
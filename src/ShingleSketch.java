@@ -0,0 +1,145 @@
+/**
+ * A HyperLogLog sketch of the distinct shingles of the input, to size nShingles.
+ *
+ * Shingler maps every shingle to its 32 bit MurmurHash mod nShingles. Two different shingles with the same cell are
+ * the same shingle from then on, so too few cells make documents look more similar than they are, and too many make
+ * the memo table of MinHash (signatureSize * nShingles ints) bigger than it has to be. The sketch counts the distinct
+ * 32 bit hashes of the shingles in 2^14 registers (about 1% standard error) without keeping the shingles.
+ *
+ * With D distinct shingles in N cells, a shingle shares its cell with some other shingle with probability
+ * 1 - (1 - 1/N)^(D-1), about 1 - exp(-D/N). That is the collision rate, and N = D / -ln(1 - rate) cells give a
+ * wanted rate.
+ */
+final class ShingleSketch {
+
+    private static final int P = 14;
+    private static final int M = 1 << P;
+
+    private final byte[] registers = new byte[M];
+
+    void add(int shingleHash) {
+        //the hash of a shingle is only 32 bits, it is spread over 64 so all registers and ranks are used
+        final long x = mix(shingleHash);
+        final int register = (int) (x >>> (64 - P));
+        final int rank = Long.numberOfLeadingZeros((x << P) | (1L << (P - 1))) + 1;
+        if (rank > registers[register]) {
+            registers[register] = (byte) rank;
+        }
+    }
+
+    ShingleSketch copy() {
+        final ShingleSketch copy = new ShingleSketch();
+        System.arraycopy(registers, 0, copy.registers, 0, M);
+        return copy;
+    }
+
+    /**
+     * The estimated number of distinct shingles added.
+     */
+    double estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte register : registers) {
+            sum += 1.0 / (1L << register);
+            if (register == 0) zeros++;
+        }
+        final double alpha = 0.7213 / (1 + 1.079 / M);
+        final double estimate = alpha * M * M / sum;
+        if (estimate <= 2.5 * M && zeros > 0) {
+            //few shingles, linear counting on the empty registers is better
+            return M * Math.log((double) M / zeros);
+        }
+        return estimate;
+    }
+
+    /**
+     * The fraction of the distinct shingles that share their cell with another one.
+     */
+    static double collisionRate(double distinct, int nShingles) {
+        if (distinct <= 1) return 0;
+        return -Math.expm1((distinct - 1) * Math.log1p(-1.0 / nShingles));
+    }
+
+    /**
+     * The number of cells for a collision rate, at most Integer.MAX_VALUE.
+     */
+    static int nShinglesFor(double distinct, double collisionRate) {
+        final double cells = Math.ceil(Math.max(distinct, 1) / -Math.log1p(-collisionRate));
+        return (int) Math.min(cells, Integer.MAX_VALUE);
+    }
+
+    //spreads an int over 64 bits, SimHashJoin uses it too
+    static long mix(int hash) {
+        return MurmurHash.fmix64(hash & 0xffffffffL);
+    }
+
+    /**
+     * What sample found, distinct is the estimate for all documents.
+     */
+    static final class Estimate {
+        int documents;
+        int sampled;
+        double sampleDistinct;
+        double growth = 1;
+        double distinct;
+
+        String describe(int nShingles) {
+            return String.format("%.0f distinct shingles (from %d of %d documents), collision rate %.4f with nShingles %d",
+                    distinct, sampled, documents, collisionRate(distinct, nShingles), nShingles);
+        }
+    }
+
+    /**
+     * The distinct shingles of the input, from a sample of its documents.
+     *
+     * Every stride-th document is shingled, the others are only read. When the sample is not the whole input the
+     * number of distinct shingles of all documents is extrapolated with Heaps' law, D(n) = K * n^growth, where growth
+     * comes from a sketch of (at most) the first half of the sample against the whole sample. The vocabulary of
+     * tweets grows slower and slower, so from a small sample this errs on the high side.
+     * @param expected the number of documents expected, to choose the stride
+     * @param sampleSize about how many documents to shingle, 0 for all of them
+     */
+    static Estimate sample(TwitterReader reader, Shingler shingler, int expected, int sampleSize) {
+        final int stride = sampleSize > 0 ? Math.max(1, expected / sampleSize) : 1;
+        final ShingleSketch sketch = new ShingleSketch();
+        final Estimate estimate = new Estimate();
+        //snapshots of the sketch whenever the sample doubled, the last two
+        ShingleSketch snapshot = null;
+        ShingleSketch previous = null;
+        int snapshotSampled = 0;
+        int previousSampled = 0;
+        while (reader.hasNext()) {
+            final String text = reader.nextText();
+            if (estimate.documents % stride == 0) {
+                shingler.sketch(text, sketch);
+                estimate.sampled++;
+                if (Integer.bitCount(estimate.sampled) == 1) {
+                    previous = snapshot;
+                    previousSampled = snapshotSampled;
+                    snapshot = sketch.copy();
+                    snapshotSampled = estimate.sampled;
+                }
+            }
+            estimate.documents++;
+        }
+        reader.close();
+
+        estimate.sampleDistinct = sketch.estimate();
+        estimate.distinct = estimate.sampleDistinct;
+        if (estimate.sampled < estimate.documents) {
+            //the growth between the last snapshot at most half the sample and the whole sample
+            final ShingleSketch half = snapshotSampled * 2 <= estimate.sampled ? snapshot : previous;
+            final int halfSampled = half == snapshot ? snapshotSampled : previousSampled;
+            if (half != null) {
+                final double halfDistinct = half.estimate();
+                estimate.growth = estimate.sampleDistinct > halfDistinct
+                        ? Math.min(1, Math.log(estimate.sampleDistinct / halfDistinct)
+                                / Math.log((double) estimate.sampled / halfSampled))
+                        : 0;
+            }
+            estimate.distinct = estimate.sampleDistinct
+                    * Math.pow((double) estimate.documents / estimate.sampled, estimate.growth);
+        }
+        return estimate;
+    }
+}
@@ -1,3 +1,4 @@
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -13,13 +14,82 @@ public class Shingler {
 	int k;
 	int nShingles;
 
+	/*
+	 * Multiset mode, for weighted similarity. A shingle that is in the document j times is in the set as j different
+	 * elements: the shingle itself and shingle + i*nShingles for i = 1 .. j-1, the extra copies. The Jaccard similarity
+	 * of two such sets is the weighted Jaccard of the shingle counts, sum of the minimum counts over sum of the
+	 * maximum counts, and MinHash of them is a weighted MinHash. Copies that would not fit in an int are dropped.
+	 */
+	boolean multiset;
+
+	/*
+	 * Normalisation, all off by default. The text can be lowercased, stripped of URLs (words starting with http://,
+	 * https:// or www.) and of @mentions (the @handle), and its runs of whitespace collapsed to one space.
+	 * With words on the shingles are k consecutive words instead of k characters, the words being what is between
+	 * the whitespace (which is then always collapsed). A document with less than k words is one shingle.
+	 */
+	boolean lowercase;
+	boolean stripUrls;
+	boolean stripMentions;
+	boolean collapseWhitespace;
+	boolean words;
+
+	/*
+	 * The normalised text of the document being shingled, made in one pass over the text. chars are its characters,
+	 * bytes the same characters as bytes where they are ASCII, and wide[i] counts the non ASCII characters before i.
+	 * A shingle of only ASCII characters is hashed right from bytes, which gives the same hash as the bytes of the
+	 * String in every ASCII compatible charset. The few with other characters are hashed as a String like always.
+	 * One per thread, so shingling allocates nothing but the set it returns.
+	 */
+	private static final class Scratch {
+		char[] chars = new char[256];
+		byte[] bytes = new byte[256];
+		int[] wide = new int[257];
+		int[] wordStarts = new int[64];
+		int[] wordEnds = new int[64];
+		int length;
+		int words;
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
 	/**
 	 * Construct a shingler.
 	 * @param k number of characters in one shingle
 	 */
 	public Shingler(int k, int nShingles){
+		this(k, nShingles, false);
+	}
+
+	/**
+	 * @param multiset whether repeated shingles count, see multiset
+	 */
+	public Shingler(int k, int nShingles, boolean multiset){
 		this.k = k;
 		this.nShingles = nShingles;
+		this.multiset = multiset;
+	}
+
+	/**
+	 * Turns normalisation on.
+	 * @param options comma separated: lowercase, urls, mentions, whitespace, or all of them with all
+	 */
+	public void normalise(String options){
+		for (String option : options.split(",")) {
+			switch (option.trim()) {
+				case "": case "none": break;
+				case "lowercase": lowercase = true; break;
+				case "urls": stripUrls = true; break;
+				case "mentions": stripMentions = true; break;
+				case "whitespace": collapseWhitespace = true; break;
+				case "all": lowercase = stripUrls = stripMentions = collapseWhitespace = true; break;
+				default: throw new IllegalArgumentException("Unknown normalisation: " + option);
+			}
+		}
+	}
+
+	boolean isNormalising(){
+		return lowercase || stripUrls || stripMentions || collapseWhitespace;
 	}
 
 	/**
@@ -32,21 +102,165 @@ public class Shingler {
 		return Math.abs(hash) % nShingles;
 	}
 
+	/*
+	 * Hash the characters from .. to-1 of the normalised text, the same as hashShingle of them as a String.
+	 */
+	private int hashShingle(Scratch scratch, int from, int to){
+		return Math.abs(murmurHash(scratch, from, to)) % nShingles;
+	}
+
+	//the MurmurHash of the shingle before it is brought to the nShingles cells
+	private static int murmurHash(Scratch scratch, int from, int to){
+		if (scratch.wide[to] != scratch.wide[from]) {
+			return MurmurHash.hash32(new String(scratch.chars, from, to - from), 1234);
+		}
+		return MurmurHash.hash32(scratch.bytes, from, to - from, 1234);
+	}
+
 	/**
 	 * Get the shingle set representation of a document.
 	 * @param doc document that should be shingled, given as a string
 	 * @return the shingle set representation of the document
 	 */
 	public Set<Integer> shingle(String doc){
+		final Scratch scratch = scan(doc);
 		Set<Integer> shingled = new HashSet<Integer>();
-		for (int i = 0; i < doc.length() - k +1; i+=1){
-			String toHash = Character.toString(doc.charAt(i));
-			for (int j = 0; j < k - 1; j++){
-				toHash += Character.toString(doc.charAt(i+j+1));
+		if (words) {
+			final int n = Math.max(1, scratch.words - k + 1);
+			for (int i = 0; i < n && scratch.words > 0; i++){
+				final int last = Math.min(i + k, scratch.words) - 1;
+				add(shingled, hashShingle(scratch, scratch.wordStarts[i], scratch.wordEnds[last]));
+			}
+		} else {
+			for (int i = 0; i < scratch.length - k +1; i+=1){
+				add(shingled, hashShingle(scratch, i, i + k));
 			}
-			shingled.add(hashShingle(toHash));
 		}
 		return shingled;
 	}
 
+	/**
+	 * Adds the shingles of a document to a sketch of the distinct shingles, as they are before nShingles is applied.
+	 */
+	public void sketch(String doc, ShingleSketch sketch){
+		final Scratch scratch = scan(doc);
+		if (words) {
+			final int n = Math.max(1, scratch.words - k + 1);
+			for (int i = 0; i < n && scratch.words > 0; i++){
+				final int last = Math.min(i + k, scratch.words) - 1;
+				sketch.add(murmurHash(scratch, scratch.wordStarts[i], scratch.wordEnds[last]));
+			}
+		} else {
+			for (int i = 0; i < scratch.length - k +1; i+=1){
+				sketch.add(murmurHash(scratch, i, i + k));
+			}
+		}
+	}
+
+	private void add(Set<Integer> shingled, int shingle){
+		if (multiset) {
+			//the next copy that is not in the set yet
+			while (!shingled.add(shingle) && shingle <= Integer.MAX_VALUE - nShingles) {
+				shingle += nShingles;
+			}
+		} else {
+			shingled.add(shingle);
+		}
+	}
+
+	/**
+	 * A 64 bit fingerprint of the document for finding exact duplicates. With normalisation on it is the fingerprint
+	 * of the normalised text, so documents that only differ in what normalisation removes are duplicates too.
+	 */
+	public long fingerprint(String doc, int seed){
+		if (!isNormalising()) {
+			return MurmurHash.hash64(doc, seed);
+		}
+		final Scratch scratch = scan(doc);
+		if (scratch.wide[scratch.length] != 0) {
+			return MurmurHash.hash64(new String(scratch.chars, 0, scratch.length), seed);
+		}
+		return MurmurHash.hash64(scratch.bytes, scratch.length, seed);
+	}
+
+	/*
+	 * Normalises the document into the scratch of the thread and finds its words, in one pass.
+	 */
+	private Scratch scan(String doc){
+		final Scratch scratch = SCRATCH.get();
+		final int length = doc.length();
+		if (scratch.chars.length < length) {
+			final int capacity = Math.max(length, 2 * scratch.chars.length);
+			scratch.chars = new char[capacity];
+			scratch.bytes = new byte[capacity];
+			scratch.wide = new int[capacity + 1];
+		}
+		final char[] chars = scratch.chars;
+		final byte[] bytes = scratch.bytes;
+		final int[] wide = scratch.wide;
+		final boolean collapse = collapseWhitespace || words;
+
+		int n = 0;
+		int words = 0;
+		boolean inWord = false;
+		int i = 0;
+		while (i < length) {
+			char c = doc.charAt(i);
+			final boolean tokenStart = i == 0 || Character.isWhitespace(doc.charAt(i - 1));
+			if (tokenStart && stripUrls && isUrl(doc, i)) {
+				while (i < length && !Character.isWhitespace(doc.charAt(i))) i++;
+				continue;
+			}
+			if (tokenStart && stripMentions && c == '@' && i + 1 < length && isHandle(doc.charAt(i + 1))) {
+				i++;
+				while (i < length && isHandle(doc.charAt(i))) i++;
+				continue;
+			}
+			i++;
+
+			final boolean whitespace = Character.isWhitespace(c);
+			if (whitespace) {
+				if (inWord) {
+					scratch.wordEnds[words - 1] = n;
+					inWord = false;
+				}
+				if (collapse) {
+					if (n == 0 || chars[n - 1] == ' ') continue;
+					c = ' ';
+				}
+			} else {
+				if (!inWord) {
+					if (words == scratch.wordStarts.length) {
+						scratch.wordStarts = Arrays.copyOf(scratch.wordStarts, 2 * words);
+						scratch.wordEnds = Arrays.copyOf(scratch.wordEnds, 2 * words);
+					}
+					scratch.wordStarts[words++] = n;
+					inWord = true;
+				}
+				if (lowercase) c = Character.toLowerCase(c);
+			}
+			chars[n] = c;
+			bytes[n] = (byte) c;
+			wide[n + 1] = wide[n] + (c < 0x80 ? 0 : 1);
+			n++;
+		}
+		if (inWord) {
+			scratch.wordEnds[words - 1] = n;
+		}
+		//a removed URL or mention at the end can leave a space behind
+		if (collapse && n > 0 && chars[n - 1] == ' ') n--;
+		scratch.length = n;
+		scratch.words = words;
+		return scratch;
+	}
+
+	private static boolean isUrl(String doc, int i){
+		return doc.regionMatches(true, i, "http://", 0, 7) || doc.regionMatches(true, i, "https://", 0, 8)
+				|| doc.regionMatches(true, i, "www.", 0, 4);
+	}
+
+	private static boolean isHandle(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
 }
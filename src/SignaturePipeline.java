@@ -0,0 +1,256 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Computes the signatures of all documents with reading, shingling and MinHash overlapping in time.
+ *
+ * One thread reads the tweets into batches, a pool of threads shingles them and another pool signs them:
+ *
+ *   reader --> [toShingle] --> shinglers --> [toSign] --> signers --> signature matrix
+ *
+ * The queues between the stages are bounded and the batches are reused (they go back to the free queue after
+ * signing), so a fast stage blocks on a full queue instead of filling the heap. Every document is signed into its
+ * own place of the matrix by its id, therefore the result is exactly the one of the sequential loop whatever the
+ * order the batches are processed in.
+ *
+ * With an input of several files there can be several readers, one file each at a time.
+ */
+final class SignaturePipeline {
+
+    /**
+     * Signs one document. Every signer thread gets its own instance, so it can keep scratch arrays.
+     */
+    interface DocumentSigner {
+        void sign(Set<Integer> document, int doc);
+    }
+
+    /**
+     * Called by the reader thread for every document, in document order.
+     * @return true if the document should not be shingled and signed
+     */
+    interface DocumentFilter {
+        boolean skip(String text, int doc);
+    }
+
+    static final int BATCH_SIZE = 1024;
+
+    private static final class Batch {
+        final String[] texts = new String[BATCH_SIZE];
+        final Set<Integer>[] documents;
+        int firstDoc;
+        int size;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Batch() {
+            documents = new Set[BATCH_SIZE];
+        }
+    }
+
+    //marks the end of the stream, one per consumer thread
+    private static final Batch END = new Batch();
+
+    private final int shinglerThreads;
+    private final int signerThreads;
+    private final BlockingQueue<Batch> free;
+    private final BlockingQueue<Batch> toShingle;
+    private final BlockingQueue<Batch> toSign;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    //fail() goes through it on a stage thread while later stages are still being started
+    private final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+
+    /**
+     * @param threads number of shingling plus signing threads, split between the two stages
+     */
+    SignaturePipeline(int threads) {
+        this.shinglerThreads = Math.max(1, threads / 2);
+        this.signerThreads = Math.max(1, threads - shinglerThreads);
+        final int inFlight = 2 * (shinglerThreads + signerThreads);
+        this.toShingle = new ArrayBlockingQueue<Batch>(inFlight);
+        this.toSign = new ArrayBlockingQueue<Batch>(inFlight);
+        this.free = new ArrayBlockingQueue<Batch>(2 * inFlight + 2);
+        for (int i = 0; i < 2 * inFlight + 2; i++) {
+            free.add(new Batch());
+        }
+    }
+
+    /**
+     * Reads, shingles and signs every document of the reader.
+     * @param filter decides which documents to skip, can be null
+     * @param signers creates one signer per signer thread
+     * @return the number of documents read
+     */
+    int run(final TwitterReader reader, final Shingler shingler, final DocumentFilter filter,
+            final Supplier<DocumentSigner> signers) {
+        final int[] documentsRead = new int[1];
+
+        final List<Thread> readers = new ArrayList<Thread>();
+        readers.add(start("lsh-reader", () -> {
+            int doc = 0;
+            Batch batch = free.take();
+            batch.firstDoc = 0;
+            batch.size = 0;
+            while (reader.hasNext()) {
+                final String text = reader.nextText();
+                batch.texts[batch.size++] = filter != null && filter.skip(text, doc) ? null : text;
+                doc++;
+                if (batch.size == BATCH_SIZE) {
+                    toShingle.put(batch);
+                    batch = free.take();
+                    batch.firstDoc = doc;
+                    batch.size = 0;
+                }
+            }
+            toShingle.put(batch);
+            documentsRead[0] = doc;
+        }));
+
+        process(readers, shingler, signers);
+        return documentsRead[0];
+    }
+
+    /**
+     * Reads, shingles and signs the documents of several files, with a reader thread per file. The files are
+     * handed out to readerThreads threads one after the other, every document goes to its place by its global id.
+     * @param documents only the documents with an id under documents are read
+     * @return the number of documents read
+     */
+    int run(final InputManifest manifest, final int documents, final int readerThreads, final Shingler shingler,
+            final Supplier<DocumentSigner> signers) {
+        final AtomicInteger nextFile = new AtomicInteger();
+
+        final List<Thread> readers = new ArrayList<Thread>();
+        for (int t = 0; t < Math.max(1, Math.min(readerThreads, manifest.files.length)); t++) {
+            readers.add(start("lsh-reader-" + t, () -> {
+                int file;
+                while ((file = nextFile.getAndIncrement()) < manifest.files.length) {
+                    final int end = Math.min(manifest.base[file + 1], documents);
+                    if (manifest.base[file] >= end) continue;
+
+                    final TwitterReader reader = new TwitterReader(documents, shingler, manifest);
+                    reader.skipTo(manifest.base[file]);
+                    Batch batch = free.take();
+                    batch.firstDoc = manifest.base[file];
+                    batch.size = 0;
+                    for (int doc = manifest.base[file]; doc < end; doc++) {
+                        batch.texts[batch.size++] = reader.nextText();
+                        if (batch.size == BATCH_SIZE) {
+                            toShingle.put(batch);
+                            batch = free.take();
+                            batch.firstDoc = doc + 1;
+                            batch.size = 0;
+                        }
+                    }
+                    reader.close();
+                    if (batch.size > 0) {
+                        toShingle.put(batch);
+                    } else {
+                        free.put(batch);
+                    }
+                }
+            }));
+        }
+
+        process(readers, shingler, signers);
+        return Math.max(0, Math.min(manifest.documents(), documents));
+    }
+
+    /*
+     * Starts the shinglers and the signers behind the readers and shuts the stages down one after the other.
+     */
+    private void process(List<Thread> readers, final Shingler shingler, final Supplier<DocumentSigner> signers) {
+        final List<Thread> shinglers = new ArrayList<Thread>();
+        for (int t = 0; t < shinglerThreads; t++) {
+            shinglers.add(start("lsh-shingler-" + t, () -> {
+                Batch batch;
+                while ((batch = toShingle.take()) != END) {
+                    for (int i = 0; i < batch.size; i++) {
+                        final String text = batch.texts[i];
+                        batch.documents[i] = text == null ? null : shingler.shingle(text);
+                        batch.texts[i] = null;
+                    }
+                    toSign.put(batch);
+                }
+            }));
+        }
+
+        final List<Thread> signerThreadList = new ArrayList<Thread>();
+        for (int t = 0; t < signerThreads; t++) {
+            signerThreadList.add(start("lsh-signer-" + t, () -> {
+                final DocumentSigner signer = signers.get();
+                Batch batch;
+                while ((batch = toSign.take()) != END) {
+                    for (int i = 0; i < batch.size; i++) {
+                        if (batch.documents[i] != null) {
+                            signer.sign(batch.documents[i], batch.firstDoc + i);
+                            batch.documents[i] = null;
+                        }
+                    }
+                    free.put(batch);
+                }
+            }));
+        }
+
+        //shut the stages down one after the other
+        try {
+            for (Thread thread : readers) join(thread);
+            for (int t = 0; t < shinglerThreads; t++) toShingle.put(END);
+            for (Thread thread : shinglers) join(thread);
+            for (int t = 0; t < signerThreads; t++) toSign.put(END);
+            for (Thread thread : signerThreadList) join(thread);
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Signature pipeline failed", failure.get());
+        }
+    }
+
+    private interface Stage {
+        void run() throws InterruptedException;
+    }
+
+    private Thread start(String name, Stage stage) {
+        final Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (InterruptedException e) {
+                //another stage failed and stopped everyone
+            } catch (Throwable e) {
+                fail(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+        //a stage that failed before this one was in the list did not interrupt it
+        if (failure.get() != null) {
+            thread.interrupt();
+        }
+        return thread;
+    }
+
+    /*
+     * Records the first failure and interrupts every stage, so nobody stays blocked on a queue.
+     */
+    private void fail(Throwable e) {
+        if (failure.compareAndSet(null, e)) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private void join(Thread thread) throws InterruptedException {
+        thread.join();
+        if (failure.get() != null) {
+            throw new InterruptedException();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Near-duplicate detection with one 64 bit SimHash fingerprint per document instead of a MinHash signature.
+ *
+ * Every shingle is spread to 64 bits, and bit i of the fingerprint is set when more than half of the shingles of the
+ * document have bit i set. Documents that share most of their shingles get fingerprints that differ in few bits, so
+ * the near-duplicates are the pairs within Hamming distance k, and the similarity written for a pair is the fraction
+ * of equal bits, 1 - distance/64.
+ *
+ * The pairs are found with permuted sorted tables, as in Manku et al.: the 64 bits are cut in B > k blocks, and two
+ * fingerprints within distance k are equal on at least B - k of them. There is a table for every choice of B - k
+ * blocks, the documents are sorted on those blocks and only the documents with the same key are compared. A pair is
+ * reported in the first table it agrees on. With B = k + 1 the keys are 64 / (k + 1) bits, 16 for k = 3, and a run of
+ * equal keys has about N / 2^16 documents which are compared with each other; more blocks give longer keys and more
+ * tables. B grows until the keys have about log2(N) bits, so runs stay short, as long as a key fits in 33 bits and
+ * there are at most MAX_TABLES tables: for k = 3 that is 4 tables up to 2^16 documents and at most 20 tables of 31
+ * bit keys, good for 2^31 documents. For larger k the limit on the tables keeps the keys short (for k over 9 B stays
+ * k + 1) and runs get long, so k should stay small (3 for 64 bits is the usual choice). The tables are made one at
+ * a time, the fingerprints and the table take 8 bytes per document each, against 4 * b * r for the signatures.
+ * Only the default result mode and clusters are supported.
+ */
+final class SimHashJoin extends LocalitySensitiveHashing {
+
+    //the largest Hamming distance of a near-duplicate pair
+    int hammingDistance = 3;
+
+    //tables are only added up to this many, each one is a sort of all fingerprints
+    static final int MAX_TABLES = 64;
+    //a key and a document id share a long, the id takes 31 bits
+    private static final int MAX_KEY_BITS = 33;
+
+    public SimHashJoin(int shingleLength, int nShingles, String inputPath, int maxFiles, String outputFile) {
+        super(shingleLength, nShingles, inputPath, 1, 1, 1, maxFiles, 0, outputFile);
+    }
+
+    @Override
+    public Set<SimilarPair> DoLSH() {
+        if (topN > 0 || topKPerDocument > 0 || skipExactDuplicates || bBits > 0 || precomputeBandKeys
+                || minBandCollisions > 1 || checkpointDir != null || joinInputPath != null) {
+            throw new IllegalStateException("the SimHash engine only supports the default mode and clusters");
+        }
+        if (hammingDistance < 0 || hammingDistance >= 64) {
+            throw new IllegalArgumentException("hammingDistance must be in 0 .. 63: " + hammingDistance);
+        }
+        if (collectMetrics) {
+            startMetrics();
+            metrics.parameter("hammingDistance", hammingDistance);
+        }
+        sizeShingles();
+        documentClusters = clusters ? new DisjointSets(maxFiles) : null;
+
+        RunMetrics.PhaseEvent phase = RunMetrics.beginPhase("fingerprints");
+        final long[] fingerprints = new long[maxFiles];
+        //the documents without shingles have no fingerprint, they are left out of the tables
+        final int[] documents = new int[maxFiles];
+        int fingerprinted = 0;
+        int idCounter = 0;
+        final TwitterReader reader = new TwitterReader(maxFiles, newShingler(), inputManifest());
+        final int[] ones = new int[64];
+        while (reader.hasNext()) {
+            final Set<Integer> document = reader.next();
+            if (!document.isEmpty()) {
+                fingerprints[idCounter] = fingerprint(document, ones);
+                documents[fingerprinted++] = idCounter;
+            }
+            idCounter++;
+        }
+        reader.close();
+        RunMetrics.endPhase(phase, metrics);
+
+        phase = RunMetrics.beginPhase("tables");
+        final int blocks = blocks(hammingDistance, fingerprinted);
+        final long[] blockMasks = new long[blocks];
+        final int[] blockShifts = new int[blocks];
+        for (int block = 0; block < blocks; block++) {
+            final int from = block * 64 / blocks;
+            final int to = (block + 1) * 64 / blocks;
+            blockShifts[block] = from;
+            blockMasks[block] = (to - from == 64 ? -1L : (1L << (to - from)) - 1) << from;
+        }
+        final int[][] tables = chooseBlocks(blocks, keyBlocks(blocks, hammingDistance));
+        final long[] tableMasks = new long[tables.length];
+        for (int t = 0; t < tables.length; t++) {
+            for (int block : tables[t]) tableMasks[t] |= blockMasks[block];
+        }
+
+        final Set<SimilarPair> similarPairs = new HashSet<SimilarPair>();
+        //one table at a time: the key (at most 33 bits) in the high bits, the document in the low 31
+        final long[] table = new long[fingerprinted];
+        long compared = 0;
+        for (int t = 0; t < tables.length; t++) {
+            for (int d = 0; d < fingerprinted; d++) {
+                final long fingerprint = fingerprints[documents[d]];
+                long key = 0;
+                for (int block : tables[t]) {
+                    key = key << Long.bitCount(blockMasks[block])
+                            | (fingerprint & blockMasks[block]) >>> blockShifts[block];
+                }
+                table[d] = key << 31 | documents[d];
+            }
+            Arrays.sort(table);
+            for (int start = 0, end; start < fingerprinted; start = end) {
+                end = start + 1;
+                while (end < fingerprinted && table[end] >>> 31 == table[start] >>> 31) end++;
+                for (int i = start; i < end; i++) {
+                    final int id1 = (int) (table[i] & Integer.MAX_VALUE);
+                    for (int j = i + 1; j < end; j++) {
+                        final int id2 = (int) (table[j] & Integer.MAX_VALUE);
+                        final long difference = fingerprints[id1] ^ fingerprints[id2];
+                        compared++;
+                        final int distance = Long.bitCount(difference);
+                        if (distance > hammingDistance || agreesBefore(difference, tableMasks, t)) continue;
+                        //the table is sorted on the document after the key, so id1 < id2
+                        if (documentClusters != null) documentClusters.union(id1, id2);
+                        if (materialisePairs) similarPairs.add(new SimilarPair(id1, id2, 1 - distance / 64.0));
+                    }
+                }
+            }
+        }
+        RunMetrics.endPhase(phase, metrics);
+        if (metrics != null) {
+            metrics.add("documents", idCounter);
+            metrics.add("pairsCompared", compared);
+        }
+        return similarPairs;
+    }
+
+    /*
+     * Whether the pair was found in an earlier table already.
+     */
+    private static boolean agreesBefore(long difference, long[] tableMasks, int table) {
+        for (int earlier = 0; earlier < table; earlier++) {
+            if ((difference & tableMasks[earlier]) == 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * The number of blocks B for distance k and a number of documents: k + 1 (at least 2), and more while the
+     * shortest key has less than log2(documents) bits, the next B still has keys of at most MAX_KEY_BITS bits and
+     * at most MAX_TABLES tables.
+     */
+    static int blocks(int k, int documents) {
+        final int wanted = 32 - Integer.numberOfLeadingZeros(Math.max(documents - 1, 1));
+        int blocks = Math.max(k + 1, 2);
+        while (keyBits(blocks, k, false) < wanted && keyBits(blocks + 1, k, true) <= MAX_KEY_BITS
+                && tables(blocks + 1, k) <= MAX_TABLES) {
+            blocks++;
+        }
+        return blocks;
+    }
+
+    //the blocks of a key, B - k; for k = 0 one of the two halves, a key of all 64 bits would not fit
+    private static int keyBlocks(int blocks, int k) {
+        return blocks - Math.max(k, 1);
+    }
+
+    //the bits of the shortest or the longest key, the blocks differ in width by at most one
+    private static int keyBits(int blocks, int k, boolean longest) {
+        final int narrow = 64 / blocks;
+        final int wide = 64 % blocks;
+        final int chosen = keyBlocks(blocks, k);
+        return chosen * narrow + (longest ? Math.min(chosen, wide) : Math.max(0, chosen - (blocks - wide)));
+    }
+
+    //B choose the number of blocks of a key
+    private static long tables(int blocks, int k) {
+        final int chosen = keyBlocks(blocks, k);
+        long tables = 1;
+        for (int i = 1; i <= chosen; i++) {
+            tables = tables * (blocks - chosen + i) / i;
+        }
+        return tables;
+    }
+
+    /**
+     * All ways to choose n of the blocks, in lexicographic order.
+     */
+    static int[][] chooseBlocks(int blocks, int n) {
+        final List<int[]> choices = new ArrayList<int[]>();
+        final int[] choice = new int[n];
+        for (int i = 0; i < n; i++) choice[i] = i;
+        while (true) {
+            choices.add(choice.clone());
+            int i = n - 1;
+            while (i >= 0 && choice[i] == blocks - n + i) i--;
+            if (i < 0) break;
+            choice[i]++;
+            for (int j = i + 1; j < n; j++) choice[j] = choice[j - 1] + 1;
+        }
+        return choices.toArray(new int[0][]);
+    }
+
+    /**
+     * The SimHash of a shingle set, every shingle weighing one.
+     * @param ones scratch space for the count of set bits, 64 ints
+     */
+    static long fingerprint(Set<Integer> shingles, int[] ones) {
+        Arrays.fill(ones, 0);
+        //the counts for bits b, b+8, ... b+56 are added up in the bytes of lanes[b], 8 at a time, and moved to ones
+        //before a byte can overflow
+        final long[] lanes = new long[8];
+        int pending = 0;
+        for (int shingle : shingles) {
+            final long hash = ShingleSketch.mix(shingle);
+            for (int b = 0; b < 8; b++) {
+                lanes[b] += (hash >>> b) & 0x0101010101010101L;
+            }
+            if (++pending == 255) {
+                flush(lanes, ones);
+                pending = 0;
+            }
+        }
+        flush(lanes, ones);
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (2 * ones[bit] > shingles.size()) fingerprint |= 1L << bit;
+        }
+        return fingerprint;
+    }
+
+    private static void flush(long[] lanes, int[] ones) {
+        for (int b = 0; b < 8; b++) {
+            for (int j = 0; j < 8; j++) {
+                ones[8 * j + b] += (int) (lanes[b] >>> (8 * j)) & 0xff;
+            }
+            lanes[b] = 0;
+        }
+    }
+}
@@ -1,6 +1,6 @@
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
@@ -8,6 +8,8 @@ import java.util.Set;
 
 /**
  * Reads a directory of documents and constructs shingle representations for these documents.
+ * The file can also be gzip or block gzip compressed, it is decompressed while it is read.
+ * The input can be several files too, see InputManifest, they are read one after the other as if they were one.
  *
  * @author Toon Van Craenendonck
  *
@@ -20,46 +22,103 @@ public class TwitterReader {
 	String filePath;
 	Scanner scanner;
 
+	InputManifest manifest;
+	//the file the scanner is on, and the id after its last document
+	int file;
+	int fileEnd;
+
 	public TwitterReader(int maxDocs, Shingler shingler, String filePath){
+		this(maxDocs, shingler, InputManifest.resolve(filePath, null, 1));
+	}
+
+	public TwitterReader(int maxDocs, Shingler shingler, InputManifest manifest){
 		this.shingler = shingler;
 		this.maxDocs = maxDocs;
-		this.curDoc = 0;
-		this.filePath = filePath;
+		this.manifest = manifest;
+		this.filePath = manifest.files[0];
+		openFile(0);
+	}
 
+	/*
+	 * The file can be plain text, gzip or block gzip, see CompressedInput.
+	 */
+	private static Scanner open(String filePath) throws IOException {
+		Scanner scanner = new Scanner(CompressedInput.open(new File(filePath)));
+		scanner.useDelimiter("\n");
+		return scanner;
+	}
+
+	private void openFile(int file){
 		try {
-			this.scanner = new Scanner(new File(filePath));
-			scanner.useDelimiter("\n");
+			close();
+			this.scanner = open(manifest.files[file]);
+			this.file = file;
+			this.curDoc = manifest.base[file];
+			this.fileEnd = manifest.base[file + 1];
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new UncheckedIOException(e);
 		}
 	}
 
 	public Set<Integer> next(){
+		String text = nextText();
+		if (text == null) {
+			return null;
+		}
+		return this.shingler.shingle(text);
+	};
+
+	/**
+	 * Reads the next document without shingling it.
+	 * @return the text of the tweet
+	 */
+	public String nextText(){
 		while (this.curDoc < this.maxDocs) {
+			if (this.curDoc == this.fileEnd || this.scanner == null) {
+				openFile(manifest.fileOf(this.curDoc));
+			}
 			String line = scanner.next();
 			String[] cols = line.split("\t", -1);
 			this.curDoc++;
-			return this.shingler.shingle(cols[2]);
+			return cols[2];
 		}
 		return null;
 	};
 
 	public void reset(){
-		try {
-			this.scanner = new Scanner(new File(filePath));
-			scanner.useDelimiter("\n");
-			System.gc();
-			this.curDoc = 0;
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		//a compressed file cannot seek back, it is opened again and read from the start
+		//(only when it is read again, the next read may as well be in another file)
+		close();
+		System.gc();
+		this.curDoc = 0;
 	};
 
 	public boolean hasNext(){
-		return this.curDoc < this.maxDocs - 1;
+		return this.curDoc < this.maxDocs - 1 && this.curDoc < manifest.documents();
 	};
 
 	public void skipNext(){
-		scanner.next();
+		skipTo(this.curDoc + 1);
+	}
+
+	/**
+	 * Moves to a document, so that the next read gives document doc. With several files the files before the
+	 * one of doc are not read at all.
+	 */
+	public void skipTo(int doc){
+		if (this.scanner == null || doc < this.curDoc || doc >= this.fileEnd) {
+			openFile(manifest.fileOf(doc));
+		}
+		while (this.curDoc < doc) {
+			scanner.next();
+			this.curDoc++;
+		}
+	}
+
+	public void close(){
+		if (this.scanner != null) {
+			this.scanner.close();
+			this.scanner = null;
+		}
 	}
 }
@@ -0,0 +1,24 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The MinHash kernel on the Vector API, the minimum of as many ints at a time as the widest vector of the CPU holds.
+ * Only loaded when jdk.incubator.vector is in the JVM, see MinHash.kernel.
+ */
+final class VectorMinKernel implements MinHash.MinKernel {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public void min(int[] signature, int signatureStart, int[] memo, int memoStart, int length) {
+        int i = 0;
+        for (final int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+            IntVector.fromArray(SPECIES, signature, signatureStart + i)
+                    .min(IntVector.fromArray(SPECIES, memo, memoStart + i))
+                    .intoArray(signature, signatureStart + i);
+        }
+        for (; i < length; i++) {
+            signature[signatureStart + i] = Math.min(signature[signatureStart + i], memo[memoStart + i]);
+        }
+    }
+}